@@ -0,0 +1,464 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Stores objects erasure coded across the owner of their key and the peers after it
+ * An object is cut into k data fragments and m parity fragments with a Reed-Solomon code. Fragment i is kept by
+ * the peer i places past the owner of the key, wrapping round the ring if it has fewer than k + m peers.
+ * Any k fragments are enough to read the object back, so up to m of those peers can be lost at once, for
+ * (k + m) / k times the size of the object instead of m + 1 times for full copies.
+ * A read is routed to the owner and passed along its successors, every peer on the way sends its fragments
+ * straight back to the reader, which decodes as soon as it has k of them. Each peer passes the read to both of its
+ * successors, so a single dead peer that has not been noticed yet does not stop it.
+ * When a first successor dies this peer rebuilds every object whose fragments reached that successor, and tells
+ * its new first successor to rebuild the objects the dead peer owned. Rebuilding reads the object back and
+ * stores all of its fragments again along the repaired ring, a rebuild that can not find enough fragments is
+ * tried again in case the ring was still being repaired.
+ * The code is set with -Dcdht.fragments=k+m, the default is 4+2.
+ * Every fragment kept is written to the write-ahead log before it is acknowledged, so a peer that crashes and
+ * restarts still has its fragments.
+ *
+ * @author Adiswhar Rishi
+ */
+public class ErasureStore implements WriteAheadLog.Client {
+    //the message size limits a fragment to 128 bytes, so k must be at least 2
+    public static final int MAX_OBJECT_SIZE = 256;
+    public static final char RECORD_TYPE = 'F';
+    private final int MAX_FRAGMENTS = 16;
+    //time a store, read or rebuild has to finish (milliseconds)
+    private final long TIMEOUT = 5000;
+    //time given to the ring to find a new successor before a rebuild is started (milliseconds)
+    private final long REPAIR_DELAY = 3000;
+    private final int REBUILD_ATTEMPTS = 3;
+
+    private cdht_ex peer;
+    private ReedSolomon code;
+    //fragments this peer keeps, by key
+    private HashMap<Integer, Held> held;
+    //stores, reads and rebuilds started by this peer, by request ID
+    private HashMap<Integer, Operation> operations;
+    //reads that have already visited this peer, a read can arrive from both of our predecessors
+    private SeenRequests seenFetches;
+
+    /**
+     * @throws IllegalArgumentException if cdht.fragments is not of the form k+m or gives too many fragments
+     */
+    public ErasureStore(cdht_ex peer) {
+        this.peer = peer;
+        String setting = System.getProperty("cdht.fragments", "4+2");
+        Matcher m = Pattern.compile("(\\d+)\\+(\\d+)").matcher(setting);
+        if (!m.matches()) throw new IllegalArgumentException("cdht.fragments must be k+m, not '" + setting + "'");
+        int dataCount = Integer.parseInt(m.group(1));
+        int parityCount = Integer.parseInt(m.group(2));
+        if (dataCount < 2 || dataCount + parityCount > MAX_FRAGMENTS) {
+            throw new IllegalArgumentException("cdht.fragments needs k >= 2 and k + m <= " + MAX_FRAGMENTS);
+        }
+        code = new ReedSolomon(dataCount, parityCount);
+        held = new HashMap<Integer, Held>();
+        operations = new HashMap<Integer, Operation>();
+        seenFetches = new SeenRequests(10000, 4096);
+        peer.writeAheadLog.register(RECORD_TYPE, this);
+    }
+
+    /**
+     * Stores an object under a key, replacing any object stored there before
+     *
+     * @param name   printed in place of the key
+     * @param object at most MAX_OBJECT_SIZE bytes
+     */
+    public synchronized void put(int key, String name, byte[] object) {
+        Operation op = start(Operation.PUT, key, name);
+        store(op, code, System.currentTimeMillis(), object);
+    }
+
+    /**
+     * Reads back the object stored under a key and prints it
+     *
+     * @param name printed in place of the key
+     */
+    public synchronized void get(int key, String name) {
+        fetch(start(Operation.GET, key, name));
+    }
+
+    /**
+     * Rebuilds this peer's share of the objects affected by the loss of our first successor
+     * This should be called once the successor has been removed, the rebuild waits for the ring to settle
+     */
+    public void handleSuccessorLoss(final int deadPeer) {
+        peer.getTimer().schedule(new Runnable() {
+            @Override
+            public void run() {
+                repair(deadPeer);
+            }
+        }, REPAIR_DELAY, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * This method should be called every time a fragment store is received
+     */
+    public synchronized void handleStore(byte[] request) {
+        ArrayList<Integer> decoded = MessageFormatter.decodeFragmentStore(request);
+        Fragment f = MessageFormatter.decodeFragment(request);
+        final int storer = decoded.get(0);
+        final int key = decoded.get(1);
+        final int requestId = decoded.get(2);
+        int position = decoded.get(3);
+        int ttl = decoded.get(4);
+        if (position == -1 && FileTracker.ownsKey(peer, key)) position = 0;
+        int successor = peer.peerTracker.getSuccessorId(1);
+        if (position == -1) {
+            int next = nextHop(key);
+            if (next == -1 || ttl <= 1) return; //the store times out
+            peer.getTcpServer().send(MessageFormatter.encodeFragmentStore(storer, peer.addressTable.get(storer),
+                    key, requestId, -1, ttl - 1, f), next);
+        } else if (position < f.index && successor != -1) {
+            peer.getTcpServer().send(MessageFormatter.encodeFragmentStore(storer, peer.addressTable.get(storer),
+                    key, requestId, position + 1, ttl, f), successor);
+        } else if (keep(key, position, f)) {
+            final int index = f.index;
+            //a record is the store message that reached us, it is only acknowledged once it is on disk
+            peer.writeAheadLog.append(RECORD_TYPE, MessageFormatter.encodeFragmentStore(storer,
+                    peer.addressTable.get(storer), key, requestId, position, ttl, f), new Runnable() {
+                @Override
+                public void run() {
+                    if (storer == peer.ID) {
+                        stored(requestId, index);
+                    } else {
+                        peer.getTcpServer().send(MessageFormatter.encodeFragmentAck(peer.ID, peer.getAddress(),
+                                key, requestId, index), storer);
+                    }
+                }
+            });
+        }
+    }
+
+    @Override
+    public synchronized void replay(byte[] record) {
+        ArrayList<Integer> decoded = MessageFormatter.decodeFragmentStore(record);
+        keep(decoded.get(1), decoded.get(3), MessageFormatter.decodeFragment(record));
+    }
+
+    @Override
+    public synchronized void checkpoint(List<byte[]> records) {
+        for (Map.Entry<Integer, Held> e : held.entrySet()) {
+            for (Fragment f : e.getValue().fragments.values()) {
+                records.add(MessageFormatter.encodeFragmentStore(peer.ID, peer.getAddress(), e.getKey(), 0,
+                        e.getValue().position, 0, f));
+            }
+        }
+    }
+
+    /**
+     * This method should be called every time a fragment ack is received
+     */
+    public synchronized void handleAck(byte[] ack) {
+        ArrayList<Integer> decoded = MessageFormatter.decodeFragmentAck(ack);
+        acknowledged(decoded.get(2), decoded.get(3), decoded.get(0));
+    }
+
+    /**
+     * This method should be called every time a fragment fetch is received
+     */
+    public synchronized void handleFetch(byte[] request) {
+        ArrayList<Integer> decoded = MessageFormatter.decodeFragmentFetch(request);
+        int requester = decoded.get(0);
+        int key = decoded.get(1);
+        int requestId = decoded.get(2);
+        int position = decoded.get(3);
+        int steps = decoded.get(4);
+        int ttl = decoded.get(5);
+        if (position == -1 && FileTracker.ownsKey(peer, key)) position = 0;
+        if (position == -1) {
+            int next = nextHop(key);
+            if (next == -1 || ttl <= 1) return; //the read times out
+            peer.getTcpServer().send(MessageFormatter.encodeFragmentFetch(requester,
+                    peer.addressTable.get(requester), key, requestId, -1, steps, ttl - 1), next);
+            return;
+        }
+        if (!seenFetches.firstSeen(requester, requestId)) return;
+        //pass the fetch on first so the next peers can look while we answer
+        //both successors are read at once, a death noticed in between would otherwise skip one of them
+        ArrayList<Integer> successors = peer.peerTracker.getSuccessors();
+        for (int i = 0; i < successors.size() && i < 2 && position + i + 1 < steps; i++) {
+            peer.getTcpServer().send(MessageFormatter.encodeFragmentFetch(requester,
+                    peer.addressTable.get(requester), key, requestId, position + i + 1, steps, ttl),
+                    successors.get(i));
+        }
+        Held h = held.get(key);
+        if (h == null) return;
+        //answering ourselves can finish a rebuild, which stores new fragments under this key
+        for (Fragment f : new ArrayList<Fragment>(h.fragments.values())) {
+            if (requester == peer.ID) {
+                received(requestId, f);
+            } else {
+                peer.getTcpServer().send(MessageFormatter.encodeFragmentReply(peer.ID, peer.getAddress(), key,
+                        requestId, f), requester);
+            }
+        }
+    }
+
+    /**
+     * This method should be called every time a fragment reply is received
+     */
+    public synchronized void handleReply(byte[] reply) {
+        ArrayList<Integer> decoded = MessageFormatter.decodeFragmentReply(reply);
+        received(decoded.get(2), MessageFormatter.decodeFragment(reply));
+    }
+
+    /**
+     * This method should be called every time a fragment repair is received
+     * Our predecessor's successor has died, so the objects it owned now belong to our predecessor
+     */
+    public synchronized void handleRepair(byte[] request) {
+        int deadPeer = MessageFormatter.decodeFragmentRepair(request).get(1);
+        for (int key : new ArrayList<Integer>(held.keySet())) {
+            if (FingerTable.distance(deadPeer, key) < FingerTable.distance(deadPeer, peer.ID)) rebuild(key);
+        }
+    }
+
+    private synchronized void repair(int deadPeer) {
+        for (Map.Entry<Integer, Held> e : new ArrayList<Map.Entry<Integer, Held>>(held.entrySet())) {
+            //fragments kept further along than ours went to the dead peer or past it
+            if (e.getValue().position < e.getValue().chainLength - 1) rebuild(e.getKey());
+        }
+        int successor = peer.peerTracker.getSuccessorId(1);
+        if (successor != -1) {
+            peer.getTcpServer().send(MessageFormatter.encodeFragmentRepair(peer.ID, peer.getAddress(), deadPeer),
+                    successor);
+        }
+    }
+
+    private void rebuild(int key) {
+        rebuild(key, 1);
+    }
+
+    private synchronized void rebuild(int key, int attempt) {
+        for (Operation op : operations.values()) {
+            if (op.kind == Operation.REBUILD && op.key == key) return;
+        }
+        System.out.println("Rebuilding the fragments of key " + key + ".");
+        Operation op = start(Operation.REBUILD, key, "key " + key);
+        op.attempt = attempt;
+        fetch(op);
+    }
+
+    private Operation start(int kind, int key, String name) {
+        final Operation op = new Operation(kind, key, name, peer.nextRequestId());
+        operations.put(op.requestId, op);
+        op.timeout = peer.getTimer().schedule(new Runnable() {
+            @Override
+            public void run() {
+                expire(op);
+            }
+        }, TIMEOUT, TimeUnit.MILLISECONDS);
+        return op;
+    }
+
+    /**
+     * Sends every fragment of the object towards the peer that should keep it
+     */
+    private void store(Operation op, ReedSolomon code, long version, byte[] object) {
+        byte[][] encoded = code.encode(object);
+        op.acked = new boolean[encoded.length];
+        for (int i = 0; i < encoded.length; i++) {
+            Fragment f = new Fragment(version, code.getDataCount(), code.getParityCount(), object.length, i,
+                    encoded[i]);
+            handleStore(MessageFormatter.encodeFragmentStore(peer.ID, peer.getAddress(), op.key, op.requestId, -1,
+                    MessageFormatter.MAX_HOPS, f));
+        }
+    }
+
+    private void fetch(Operation op) {
+        int steps = code.getDataCount() + code.getParityCount();
+        handleFetch(MessageFormatter.encodeFragmentFetch(peer.ID, peer.getAddress(), op.key, op.requestId, -1,
+                steps, MessageFormatter.MAX_HOPS));
+    }
+
+    /**
+     * Keeps a fragment, a fragment of an older version of the object than the one kept already is refused
+     */
+    private boolean keep(int key, int position, Fragment f) {
+        Held h = held.get(key);
+        if (h != null && h.version > f.version) return false;
+        if (h == null || h.version < f.version) {
+            h = new Held(f);
+            held.put(key, h);
+        }
+        h.position = Math.min(h.position, position);
+        h.fragments.put(f.index, f);
+        return true;
+    }
+
+    private synchronized void stored(int requestId, int index) {
+        acknowledged(requestId, index, peer.ID);
+    }
+
+    private void acknowledged(int requestId, int index, int holder) {
+        Operation op = operations.get(requestId);
+        if (op == null || op.acked == null || index >= op.acked.length || op.acked[index]) return;
+        op.acked[index] = true;
+        op.ackCount++;
+        if (index == 0) op.owner = holder;
+        if (op.ackCount < op.acked.length) return;
+        operations.remove(requestId);
+        op.timeout.cancel();
+        if (op.kind == Operation.PUT) {
+            System.out.println("Stored " + op.name + " as " + code.getDataCount() + " data and "
+                    + code.getParityCount() + " parity fragments, starting at peer " + op.owner + ".");
+        } else {
+            System.out.println("Rebuilt the " + op.acked.length + " fragments of " + op.name + ", starting at peer "
+                    + op.owner + ".");
+        }
+    }
+
+    private void received(int requestId, Fragment f) {
+        Operation op = operations.get(requestId);
+        if (op == null || op.acked != null) return;
+        int total = f.dataCount + f.parityCount;
+        byte[][] fragments = op.found.get(f.version);
+        if (fragments == null) {
+            fragments = new byte[total][];
+            op.found.put(f.version, fragments);
+        }
+        if (f.index >= fragments.length || fragments[f.index] != null) return;
+        fragments[f.index] = f.data;
+        int count = 0;
+        for (byte[] fragment : fragments) {
+            if (fragment != null) count++;
+        }
+        if (count < f.dataCount) return;
+        ReedSolomon objectCode = new ReedSolomon(f.dataCount, f.parityCount);
+        byte[] object;
+        try {
+            object = objectCode.decode(fragments, f.length);
+        } catch (IllegalArgumentException ex) {
+            System.out.println("Fragments of " + op.name + " do not fit together: " + ex.getMessage());
+            return;
+        }
+        if (op.kind == Operation.GET) {
+            operations.remove(requestId);
+            op.timeout.cancel();
+            System.out.println("Read " + op.name + " from fragments " + describe(fragments) + ": "
+                    + new String(object));
+        } else {
+            //the same version is stored again so any fragment left over from before still fits with it
+            store(op, objectCode, f.version, object);
+        }
+    }
+
+    private synchronized void expire(Operation op) {
+        if (operations.remove(op.requestId) != op) return;
+        if (op.acked != null) {
+            System.out.println("Only " + op.ackCount + " of the " + op.acked.length + " fragments of " + op.name
+                    + " were stored.");
+        } else if (op.found.isEmpty()) {
+            System.out.println("No fragments of " + op.name + " were found.");
+        } else {
+            System.out.println("Not enough fragments of " + op.name + " were found to "
+                    + ((op.kind == Operation.GET) ? "read" : "rebuild") + " it.");
+        }
+        if (op.kind == Operation.REBUILD && op.acked == null && op.attempt < REBUILD_ATTEMPTS) {
+            final int key = op.key;
+            final int attempt = op.attempt + 1;
+            peer.getTimer().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    rebuild(key, attempt);
+                }
+            }, REPAIR_DELAY, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Returns the peer a message for the key should be sent to next, or -1 if there is none
+     */
+    private int nextHop(int key) {
+        int next = peer.fingers.nextHop(key);
+        return (next == -1) ? peer.peerTracker.getSuccessorId(1) : next;
+    }
+
+    private static String describe(byte[][] fragments) {
+        ArrayList<Integer> indexes = new ArrayList<Integer>();
+        for (int i = 0; i < fragments.length; i++) {
+            if (fragments[i] != null) indexes.add(i);
+        }
+        return indexes.toString();
+    }
+
+    /**
+     * One fragment of an erasure coded object
+     */
+    public static class Fragment {
+        //when the object was stored, a newer version replaces an older one
+        final long version;
+        final int dataCount;
+        final int parityCount;
+        //size of the whole object
+        final int length;
+        final int index;
+        final byte[] data;
+
+        public Fragment(long version, int dataCount, int parityCount, int length, int index, byte[] data) {
+            this.version = version;
+            this.dataCount = dataCount;
+            this.parityCount = parityCount;
+            this.length = length;
+            this.index = index;
+            this.data = data;
+        }
+    }
+
+    /**
+     * The fragments of one object kept by this peer
+     */
+    private static class Held {
+        long version;
+        int chainLength;
+        //fewest peers past the owner of any fragment kept
+        int position = Integer.MAX_VALUE;
+        TreeMap<Integer, Fragment> fragments;
+
+        public Held(Fragment f) {
+            version = f.version;
+            chainLength = f.dataCount + f.parityCount;
+            fragments = new TreeMap<Integer, Fragment>();
+        }
+    }
+
+    /**
+     * A store, read or rebuild started by this peer
+     */
+    private static class Operation {
+        static final int PUT = 0;
+        static final int GET = 1;
+        static final int REBUILD = 2;
+
+        int kind;
+        int key;
+        String name;
+        int requestId;
+        //null until fragments are being stored
+        boolean[] acked;
+        int ackCount;
+        int owner = -1;
+        //rebuilds only, counting from 1
+        int attempt;
+        //fragments found so far, by version
+        HashMap<Long, byte[][]> found;
+        HashedWheelTimer.Timeout timeout;
+
+        public Operation(int kind, int key, String name, int requestId) {
+            this.kind = kind;
+            this.key = key;
+            this.name = name;
+            this.requestId = requestId;
+            found = new HashMap<Long, byte[][]>();
+        }
+    }
+}
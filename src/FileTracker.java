@@ -1,9 +1,19 @@
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
 /**
  * This is a static class that can be used to check if a given peer has a file requested
+ * File names are hashed to a key with the function chosen by the system property cdht.hash -
+ * legacy (default) keeps the original (name + 1) mod 256 for names that are numbers and uses fnv for any other name,
+ * fnv is the 32 bit FNV-1a hash folded down to 8 bits, sha is the first byte of the SHA-256 digest.
+ * Every peer should be started with the same hash, a file is looked for at the owner of the key it was hashed to
+ * by the peer that asked for it.
  *
  * @author Adiswhar Rishi
  */
 public class FileTracker {
+    private static final String HASH = System.getProperty("cdht.hash", "legacy");
 
     /**
      * Call this method to determine if a cdht has the requested file
@@ -12,8 +22,18 @@ public class FileTracker {
      * @param fileName the un-hashed filename
      */
     public static boolean hasFile(cdht_ex peer, String fileName) {
+        return ownsKey(peer, getFileId(fileName));
+    }
+
+    /**
+     * Call this method to determine if a key falls in the arc of the ring a cdht is responsible for
+     * A peer is responsible for every key from its own ID up to (not including) its first successor
+     *
+     * @param peer   the cdht to check
+     * @param fileId an already hashed key, range 0-255
+     */
+    public static boolean ownsKey(cdht_ex peer, int fileId) {
         boolean returnVal = false;
-        int fileId = getFileId(fileName);
         int successor = peer.peerTracker.getSuccessorId(1);
         if (fileId < successor) {
             if (fileId >= peer.ID ) {
@@ -31,8 +51,52 @@ public class FileTracker {
 
     /**
      * Returns the file ID given by the file hash function
+     * The ID should be worked out once, by the peer the file name was given to, and passed on with the request
      */
-    private static int getFileId(String fileName) {
-        return (Integer.parseInt((fileName.trim())) + 1) % 256;
+    public static int getFileId(String fileName) {
+        byte[] name = fileName.trim().getBytes(StandardCharsets.UTF_8);
+        switch (HASH) {
+            case "sha":
+                return sha(name);
+            case "fnv":
+                return fnv(name);
+            default:
+                try {
+                    int number = Integer.parseInt(fileName.trim());
+                    if (number >= 0) return (number + 1) % 256;
+                } catch (NumberFormatException ignored) {
+                }
+                return fnv(name);
+        }
+    }
+
+    /**
+     * Makes sure cdht.hash names a hash function this class has
+     *
+     * @throws IllegalArgumentException if it does not
+     */
+    public static void checkHashSetting() {
+        if (!HASH.equals("legacy") && !HASH.equals("fnv") && !HASH.equals("sha")) {
+            throw new IllegalArgumentException("cdht.hash must be legacy, fnv or sha, not '" + HASH + "'");
+        }
+    }
+
+    private static int fnv(byte[] name) {
+        int h = 0x811c9dc5;
+        for (byte b : name) {
+            h ^= b & 0xff;
+            h *= 0x01000193;
+        }
+        //every bit of the hash has a say in the key
+        return (h ^ (h >>> 8) ^ (h >>> 16) ^ (h >>> 24)) & 0xff;
+    }
+
+    private static int sha(byte[] name) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(name)[0] & 0xff;
+        } catch (NoSuchAlgorithmException e) {
+            //every JVM has SHA-256
+            throw new IllegalStateException(e);
+        }
     }
 }
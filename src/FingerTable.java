@@ -0,0 +1,217 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Keeps track of peers further around the ring than our successors
+ * Finger i is the owner of key ID + 2^i, so the fingers are spread at doubling distances around the ring.
+ * One finger is looked up again every refresh, a finger that can not be reached is forgotten until then.
+ * Lookups are routed through the fingers themselves, so they get faster as the table fills up.
+ *
+ * @author Adiswhar Rishi
+ */
+public class FingerTable implements Runnable {
+    //the ID space has 2^FINGERS keys
+    public static final int FINGERS = 8;
+    public static final int RING_SIZE = 1 << FINGERS;
+    //time between finger lookups (milliseconds)
+    private final long REFRESH_PERIOD = 1000;
+
+    private cdht_ex peer;
+    //read and written without holding the lock, a send that fails can forget a finger from any thread
+    private AtomicIntegerArray fingers;
+    private int next;
+    private boolean running;
+    private HashedWheelTimer.Timeout nextRefresh;
+
+    public FingerTable(cdht_ex peer) {
+        this.peer = peer;
+        fingers = new AtomicIntegerArray(FINGERS);
+        for (int i = 0; i < FINGERS; i++) {
+            fingers.set(i, -1);
+        }
+    }
+
+    /**
+     * Looks up every finger once and then one finger per refresh
+     */
+    public synchronized void start() {
+        running = true;
+        for (int i = 0; i < FINGERS; i++) {
+            lookup(i);
+        }
+        nextRefresh = peer.getTimer().schedule(this, REFRESH_PERIOD, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        running = false;
+        if (nextRefresh != null) nextRefresh.cancel();
+    }
+
+    @Override
+    public synchronized void run() {
+        if (!running) return;
+        lookup(next);
+        next = (next + 1) % FINGERS;
+        nextRefresh = peer.getTimer().schedule(this, REFRESH_PERIOD, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * This method should be called every time a finger lookup is received
+     */
+    public void handleLookup(byte[] request) {
+        ArrayList<Integer> decoded = MessageFormatter.decodeFingerLookup(request);
+        route(decoded.get(0), decoded.get(1), decoded.get(2));
+    }
+
+    /**
+     * This method should be called every time the answer to one of our finger lookups is received
+     */
+    public void handleAnswer(byte[] answer) {
+        ArrayList<Integer> decoded = MessageFormatter.decodeFingerAnswer(answer);
+        setFinger(decoded.get(1), decoded.get(0));
+    }
+
+    /**
+     * Drops a peer that could not be reached from the table
+     */
+    public void forget(int peerId) {
+        for (int i = 0; i < FINGERS; i++) {
+            fingers.compareAndSet(i, peerId, -1);
+        }
+    }
+
+    /**
+     * Returns finger i at position i, -1 where a finger is not known, for saving in the routing snapshot
+     */
+    public ArrayList<Integer> getFingers() {
+        ArrayList<Integer> r = new ArrayList<Integer>();
+        for (int i = 0; i < FINGERS; i++) {
+            r.add(fingers.get(i));
+        }
+        return r;
+    }
+
+    /**
+     * Puts back fingers saved by a previous run, called before start
+     * The fingers are looked up again by start anyway, until the answers arrive these are used for routing
+     *
+     * @param saved finger i at position i, -1 where a finger was not known
+     */
+    public void restore(List<Integer> saved) {
+        for (int i = 0; i < FINGERS && i < saved.size(); i++) {
+            int f = saved.get(i);
+            fingers.set(i, (f == peer.ID || f < -1 || f >= RING_SIZE) ? -1 : f);
+        }
+    }
+
+    /**
+     * Returns every peer this peer can send to directly - its successors, predecessors and fingers
+     * Each peer appears once and this peer is not included
+     */
+    public ArrayList<Integer> getRoutingEntries() {
+        ArrayList<Integer> r = new ArrayList<Integer>();
+        for (int s : peer.peerTracker.getSuccessors()) {
+            if (!r.contains(s)) r.add(s);
+        }
+        ArrayList<Integer> predecessors = peer.peerTracker.getPredecessors();
+        if (predecessors != null) {
+            for (int p : predecessors) {
+                if (!r.contains(p)) r.add(p);
+            }
+        }
+        for (int i = 0; i < FINGERS; i++) {
+            int f = fingers.get(i);
+            if (f != -1 && !r.contains(f)) r.add(f);
+        }
+        r.remove((Integer) peer.ID);
+        return r;
+    }
+
+    /**
+     * Returns the known peer closest to the key without going past it, or -1 if there is none
+     */
+    public int closestPreceding(int key) {
+        int best = -1;
+        for (int p : getRoutingEntries()) {
+            if (distance(peer.ID, p) <= distance(peer.ID, key) && (best == -1
+                    || distance(peer.ID, p) > distance(peer.ID, best))) {
+                best = p;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Picks the peer a request for the key should be sent to next, or -1 if no known peer is on the way to it
+     * Any known peer that does not go past the key is a candidate. Candidates that leave the same power of two of
+     * the ID space still to cover as the closest one make equivalent progress, and the fastest of those is picked.
+     */
+    public int nextHop(int key) {
+        int closest = closestPreceding(key);
+        if (closest == -1) return -1;
+        int level = level(distance(closest, key));
+        int best = closest;
+        long bestRtt = peer.rtts.getSmoothedRtt(closest);
+        for (int p : getRoutingEntries()) {
+            if (distance(peer.ID, p) > distance(peer.ID, key) || level(distance(p, key)) != level) continue;
+            long rtt = peer.rtts.getSmoothedRtt(p);
+            //a peer we have never measured is only used if it is also the closest
+            if (rtt != -1 && (bestRtt == -1 || rtt < bestRtt)) {
+                best = p;
+                bestRtt = rtt;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Number of keys from a going clockwise to b
+     */
+    public static int distance(int a, int b) {
+        return (b - a + 256) % 256;
+    }
+
+    /**
+     * Number of bits needed to write the distance, distances in the same level are within a factor of two
+     */
+    private static int level(int distance) {
+        return 32 - Integer.numberOfLeadingZeros(distance);
+    }
+
+    private void lookup(int finger) {
+        route(peer.ID, (peer.ID + (1 << finger)) % RING_SIZE, MessageFormatter.MAX_HOPS);
+    }
+
+    /**
+     * Answers the lookup if we own the key, otherwise sends it on towards the key
+     */
+    private void route(int requester, int key, int ttl) {
+        if (FileTracker.ownsKey(peer, key)) {
+            if (requester == peer.ID) {
+                setFinger(key, peer.ID);
+            } else {
+                peer.getTcpServer().send(MessageFormatter.encodeFingerAnswer(peer.ID, peer.getAddress(), key),
+                        requester);
+            }
+            return;
+        }
+        int next = nextHop(key);
+        if (next == -1 || ttl <= 1) return; //the next refresh will try again
+        peer.getTcpServer().send(MessageFormatter.encodeFingerLookup(requester, peer.addressTable.get(requester),
+                key, ttl - 1), next);
+    }
+
+    private void setFinger(int key, int owner) {
+        boolean changed = false;
+        for (int i = 0; i < FINGERS; i++) {
+            if ((peer.ID + (1 << i)) % RING_SIZE == key) {
+                int f = (owner == peer.ID) ? -1 : owner;
+                if (fingers.getAndSet(i, f) != f) changed = true;
+            }
+        }
+        //a refresh that finds the same owner is not worth a log record
+        if (changed) peer.peerTracker.saveSnapshot();
+    }
+}
@@ -0,0 +1,318 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Java Flight Recorder events for the stages a message goes through, so a slow lookup can be taken apart
+ * Nothing is recorded unless a recording is running, e.g. java -XX:StartFlightRecording cdht_ex ...
+ * Every event carries the ID of the peer that recorded it, so recordings from several peers can be merged and
+ * followed by peer, requesting peer and request ID.
+ * Stack traces are left out to keep the events cheap enough to leave on. The start methods return null when no
+ * recording wants the event, so nothing is created for a message unless it is going to be recorded.
+ *
+ * @author Adiswhar Rishi
+ */
+public class FlightEvents {
+    //looked up once so a recording can be checked for without creating an event
+    private static final EventType RECEIVE = EventType.getEventType(MessageReceive.class);
+    private static final EventType DISPATCH = EventType.getEventType(MessageDispatch.class);
+    private static final EventType DECODE = EventType.getEventType(MessageDecode.class);
+    private static final EventType LOOKUP = EventType.getEventType(LookupForward.class);
+    private static final EventType SEND = EventType.getEventType(MessageSend.class);
+    private static final EventType PING_SENT = EventType.getEventType(PingSent.class);
+    private static final EventType PING_ACK = EventType.getEventType(PingAck.class);
+    private static final EventType PEER_LOSS = EventType.getEventType(PeerLoss.class);
+    private static final EventType REPAIR = EventType.getEventType(SuccessorRepair.class);
+
+    /**
+     * Returns a receive event that has been begun, or null if nothing is recording it
+     */
+    public static MessageReceive startReceive() {
+        if (!RECEIVE.isEnabled()) return null;
+        MessageReceive e = new MessageReceive();
+        e.begin();
+        return e;
+    }
+
+    /**
+     * Returns a dispatch event that has been begun, or null if nothing is recording it
+     */
+    public static MessageDispatch startDispatch() {
+        if (!DISPATCH.isEnabled()) return null;
+        MessageDispatch e = new MessageDispatch();
+        e.begin();
+        return e;
+    }
+
+    /**
+     * Returns a decode event that has been begun, or null if nothing is recording it
+     */
+    public static MessageDecode startDecode() {
+        if (!DECODE.isEnabled()) return null;
+        MessageDecode e = new MessageDecode();
+        e.begin();
+        return e;
+    }
+
+    /**
+     * Returns a lookup event, or null if nothing is recording it
+     */
+    public static LookupForward startLookup() {
+        return (LOOKUP.isEnabled()) ? new LookupForward() : null;
+    }
+
+    /**
+     * Returns a send event that has been begun, or null if nothing is recording it
+     */
+    public static MessageSend startSend() {
+        if (!SEND.isEnabled()) return null;
+        MessageSend e = new MessageSend();
+        e.begin();
+        return e;
+    }
+
+    /**
+     * Returns a peer loss event, or null if nothing is recording it
+     */
+    public static PeerLoss startPeerLoss() {
+        return (PEER_LOSS.isEnabled()) ? new PeerLoss() : null;
+    }
+
+    /**
+     * Returns a successor repair event that has been begun, or null if nothing is recording it
+     */
+    public static SuccessorRepair startRepair() {
+        if (!REPAIR.isEnabled()) return null;
+        SuccessorRepair e = new SuccessorRepair();
+        e.begin();
+        return e;
+    }
+
+    /**
+     * Records a ping request sent to a successor, creates nothing unless a recording is running
+     */
+    public static void pingSent(int peerId, int receiverId, byte seqNumber) {
+        if (!PING_SENT.isEnabled()) return;
+        PingSent e = new PingSent();
+        e.peerId = peerId;
+        e.receiverId = receiverId;
+        e.sequence = seqNumber;
+        e.size = MessageFormatter.MAX_PING_SIZE;
+        e.commit();
+    }
+
+    /**
+     * Records a ping response from a successor, creates nothing unless a recording is running
+     */
+    public static void pingAck(int peerId, int successorId, byte seqNumber, long rttNanos) {
+        if (!PING_ACK.isEnabled()) return;
+        PingAck e = new PingAck();
+        e.peerId = peerId;
+        e.successorId = successorId;
+        e.sequence = seqNumber;
+        e.size = MessageFormatter.MAX_PING_SIZE;
+        e.roundTrip = rttNanos;
+        e.commit();
+    }
+
+    @Name("cdht.MessageReceive")
+    @Label("Message Receive")
+    @Category({"CDHT", "Messages"})
+    @Description("Reading a message from a connection, after waiting for a receiver thread")
+    @StackTrace(false)
+    public static class MessageReceive extends Event {
+        @Label("Peer")
+        public int peerId;
+        @Label("Sender")
+        public int senderId;
+        @Label("Message Type")
+        public String messageType;
+        @Label("Size")
+        @DataAmount
+        public int size;
+        @Label("Hop")
+        @Description("Hops taken by a file request or response, 0 for other messages")
+        public int hop;
+        @Label("Transport")
+        public String transport;
+        @Label("Queue Time")
+        @Description("Time spent waiting for a receiver thread")
+        @Timespan(Timespan.NANOSECONDS)
+        public long queueTime;
+    }
+
+    @Name("cdht.MessageDispatch")
+    @Label("Message Dispatch")
+    @Category({"CDHT", "Messages"})
+    @Description("Recognising a message and acting on it")
+    @StackTrace(false)
+    public static class MessageDispatch extends Event {
+        @Label("Peer")
+        public int peerId;
+        @Label("Sender")
+        public int senderId;
+        @Label("Message Type")
+        public String messageType;
+        @Label("Size")
+        @DataAmount
+        public int size;
+        @Label("Hop")
+        @Description("Hops taken by a file request or response, 0 for other messages")
+        public int hop;
+        @Label("Handled")
+        public boolean handled;
+    }
+
+    @Name("cdht.MessageDecode")
+    @Label("Message Decode")
+    @Category({"CDHT", "Messages"})
+    @Description("Matching a file request or response against the message patterns and reading its fields")
+    @StackTrace(false)
+    public static class MessageDecode extends Event {
+        @Label("Peer")
+        public int peerId;
+        @Label("Sender")
+        public int senderId;
+        @Label("Message Type")
+        public String messageType;
+        @Label("Size")
+        @DataAmount
+        public int size;
+        @Label("Hop")
+        public int hop;
+    }
+
+    @Name("cdht.LookupForward")
+    @Label("Lookup Forward")
+    @Category({"CDHT", "Lookups"})
+    @Description("What a peer did with a file request")
+    @StackTrace(false)
+    public static class LookupForward extends Event {
+        @Label("Peer")
+        public int peerId;
+        @Label("Requesting Peer")
+        public int requesterId;
+        @Label("Request ID")
+        public int requestId;
+        @Label("Key")
+        public int fileId;
+        @Label("Hop")
+        public int hop;
+        @Label("Decision")
+        @Description("found, forwarded, duplicate, loop, hop limit or no route")
+        public String decision;
+        @Label("Next Hop")
+        @Description("The peer the request was forwarded to, -1 if it was not forwarded")
+        public int nextHopId;
+        @Label("Route")
+        @Description("successor, second successor or finger")
+        public String route;
+    }
+
+    @Name("cdht.MessageSend")
+    @Label("Message Send")
+    @Category({"CDHT", "Messages"})
+    @Description("Connecting to a peer and writing a message, after waiting for a sender thread")
+    @StackTrace(false)
+    public static class MessageSend extends Event {
+        @Label("Peer")
+        public int peerId;
+        @Label("Receiver")
+        public int receiverId;
+        @Label("Message Type")
+        public String messageType;
+        @Label("Size")
+        @DataAmount
+        public int size;
+        @Label("Hop")
+        @Description("Hop a file request or response is on, 0 for other messages")
+        public int hop;
+        @Label("Lane")
+        public String lane;
+        @Label("Queue Time")
+        @Description("Time spent waiting for a sender thread")
+        @Timespan(Timespan.NANOSECONDS)
+        public long queueTime;
+        @Label("Connect Time")
+        @Timespan(Timespan.NANOSECONDS)
+        public long connectTime;
+        @Label("Refused")
+        public boolean refused;
+    }
+
+    @Name("cdht.PingSent")
+    @Label("Ping Sent")
+    @Category({"CDHT", "Pings"})
+    @StackTrace(false)
+    public static class PingSent extends Event {
+        @Label("Peer")
+        public int peerId;
+        @Label("Receiver")
+        public int receiverId;
+        @Label("Sequence Number")
+        public byte sequence;
+        @Label("Size")
+        @DataAmount
+        public int size;
+    }
+
+    @Name("cdht.PingAck")
+    @Label("Ping Acknowledged")
+    @Category({"CDHT", "Pings"})
+    @StackTrace(false)
+    public static class PingAck extends Event {
+        @Label("Peer")
+        public int peerId;
+        @Label("Successor")
+        public int successorId;
+        @Label("Sequence Number")
+        public byte sequence;
+        @Label("Size")
+        @DataAmount
+        public int size;
+        @Label("Round Trip")
+        @Timespan(Timespan.NANOSECONDS)
+        public long roundTrip;
+    }
+
+    @Name("cdht.PeerLoss")
+    @Label("Peer Loss")
+    @Category({"CDHT", "Membership"})
+    @Description("A successor was found dead or departed")
+    @StackTrace(false)
+    public static class PeerLoss extends Event {
+        @Label("Peer")
+        public int peerId;
+        @Label("Lost Peer")
+        public int lostPeerId;
+        @Label("Cause")
+        @Description("pings, refused or departed")
+        public String cause;
+        @Label("Successor Position")
+        public int position;
+    }
+
+    @Name("cdht.SuccessorRepair")
+    @Label("Successor Repair")
+    @Category({"CDHT", "Membership"})
+    @Description("From losing a successor until two successors are known again")
+    @StackTrace(false)
+    public static class SuccessorRepair extends Event {
+        @Label("Peer")
+        public int peerId;
+        @Label("Lost Peer")
+        public int lostPeerId;
+        @Label("Cause")
+        public String cause;
+        @Label("First Successor")
+        public int firstSuccessor;
+        @Label("Second Successor")
+        public int secondSuccessor;
+    }
+}
@@ -0,0 +1,204 @@
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A hashed timing wheel, scheduling and cancelling a task are both O(1)
+ * Time is split into ticks and every tick has a bucket on the wheel. A task that is further away than one turn
+ * of the wheel waits in its bucket for the remaining number of turns.
+ * Tasks are run on the timer thread so they must be short, anything slow should be handed to an executor.
+ * <p>
+ * One timer is shared by every peer in the process, see shared()
+ *
+ * @author Adiswhar Rishi
+ */
+public class HashedWheelTimer implements Runnable {
+    private static HashedWheelTimer sharedTimer;
+
+    private final long TICK_NANOS;
+    private final Bucket[] wheel;
+    private final int mask;
+    //timeouts are only ever touched by the timer thread, other threads hand them over through these queues
+    private ConcurrentLinkedQueue<Timeout> newTimeouts;
+    private ConcurrentLinkedQueue<Timeout> cancelledTimeouts;
+    private long startTime;
+    private long tick;
+    private Thread worker;
+
+    /**
+     * @param tickDuration how much time each bucket covers
+     * @param unit         unit of tickDuration
+     * @param wheelSize    number of buckets, rounded up to a power of two
+     */
+    public HashedWheelTimer(long tickDuration, TimeUnit unit, int wheelSize) {
+        TICK_NANOS = unit.toNanos(tickDuration);
+        int size = Integer.highestOneBit(Math.max(wheelSize, 1) - 1) << 1;
+        if (size == 0) size = 1;
+        wheel = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new Bucket();
+        }
+        mask = size - 1;
+        newTimeouts = new ConcurrentLinkedQueue<Timeout>();
+        cancelledTimeouts = new ConcurrentLinkedQueue<Timeout>();
+        startTime = System.nanoTime();
+        worker = new Thread(this, "Hashed Wheel Timer");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Returns the timer shared by every peer in this process. It ticks every 10ms and turns once every ~5s
+     */
+    public static synchronized HashedWheelTimer shared() {
+        if (sharedTimer == null) sharedTimer = new HashedWheelTimer(10, TimeUnit.MILLISECONDS, 512);
+        return sharedTimer;
+    }
+
+    /**
+     * Schedules a task to run once after the given delay
+     *
+     * @return a handle that can be used to cancel the task
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        Timeout t = new Timeout(task, System.nanoTime() - startTime + unit.toNanos(Math.max(delay, 0)));
+        newTimeouts.add(t);
+        return t;
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            long deadline = TICK_NANOS * (tick + 1);
+            long sleep = deadline - (System.nanoTime() - startTime);
+            if (sleep > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                } catch (InterruptedException ignored) {
+                }
+                continue;
+            }
+            removeCancelled();
+            transferNewTimeouts();
+            wheel[(int) (tick & mask)].expire(deadline);
+            tick++;
+        }
+    }
+
+    private void transferNewTimeouts() {
+        Timeout t;
+        while ((t = newTimeouts.poll()) != null) {
+            if (t.state != Timeout.PENDING) continue;
+            long expiryTick = Math.max(t.deadline / TICK_NANOS, tick); //anything overdue goes in the current bucket
+            t.remainingRounds = (expiryTick - tick) / wheel.length;
+            wheel[(int) (expiryTick & mask)].add(t);
+        }
+    }
+
+    private void removeCancelled() {
+        Timeout t;
+        while ((t = cancelledTimeouts.poll()) != null) {
+            if (t.bucket != null) t.bucket.remove(t);
+        }
+    }
+
+    /**
+     * A handle for a scheduled task
+     */
+    public class Timeout {
+        private static final int PENDING = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+
+        private Runnable task;
+        private long deadline;
+        private long remainingRounds;
+        private volatile int state;
+        private Bucket bucket;
+        private Timeout prev;
+        private Timeout next;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+            this.state = PENDING;
+        }
+
+        /**
+         * Stops the task from running, does nothing if it has already run
+         *
+         * @return true if the task had not run yet
+         */
+        public boolean cancel() {
+            synchronized (this) {
+                if (state != PENDING) return false;
+                state = CANCELLED;
+            }
+            cancelledTimeouts.add(this);
+            return true;
+        }
+
+        public boolean isExpired() {
+            return state == EXPIRED;
+        }
+
+        private void expire() {
+            synchronized (this) {
+                if (state != PENDING) return;
+                state = EXPIRED;
+            }
+            try {
+                task.run();
+            } catch (RuntimeException ex) {
+                //one broken task must not stop the timer
+                ex.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * A doubly linked list of timeouts so that cancelled ones can be unlinked in O(1)
+     */
+    private class Bucket {
+        private Timeout head;
+        private Timeout tail;
+
+        void add(Timeout t) {
+            t.bucket = this;
+            if (head == null) {
+                head = tail = t;
+            } else {
+                tail.next = t;
+                t.prev = tail;
+                tail = t;
+            }
+        }
+
+        void remove(Timeout t) {
+            if (t.prev != null) t.prev.next = t.next;
+            if (t.next != null) t.next.prev = t.prev;
+            if (t == head) head = t.next;
+            if (t == tail) tail = t.prev;
+            t.prev = t.next = null;
+            t.bucket = null;
+        }
+
+        /**
+         * Runs every timeout in this bucket that is due on this turn of the wheel
+         */
+        void expire(long deadline) {
+            Timeout t = head;
+            while (t != null) {
+                Timeout next = t.next;
+                if (t.remainingRounds <= 0 && t.deadline <= deadline) {
+                    remove(t);
+                    t.expire();
+                } else if (t.state == Timeout.CANCELLED) {
+                    remove(t);
+                } else {
+                    t.remainingRounds--;
+                }
+                t = next;
+            }
+        }
+    }
+}
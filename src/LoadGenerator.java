@@ -0,0 +1,559 @@
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drives file request load against a running ring and reports throughput, hop counts and latency
+ * Usage: java LoadGenerator <CLIENT ID> <ENTRY PEER ID> [options]
+ * The client receives file responses on TCP port 50000 + CLIENT ID, so the ID must not be used by a peer
+ * <p>
+ * Options -
+ * -bind <host:port> receive responses on this address instead
+ * -entry <host:port> the address of the entry peer, if it is not on localhost at port 50000 + ENTRY PEER ID
+ * -rate <n>         open loop, issue n requests per second, latency is measured from when each request was due
+ * -concurrency <n>  closed loop, keep n requests outstanding (default 1)
+ * -duration <s>     how long to run for (default 10)
+ * -timeout <ms>     a request with no response after this long is counted as failed (default 2000)
+ * -keys <n>         file names are drawn from [0, n) (default 10000)
+ * -zipf <s>         draw file names from a zipf distribution with exponent s (default uniform)
+ * -ring <id,...>    the ring membership, needed by -churn
+ * -churn <s>        spawn the ring locally and kill then rejoin a random peer every s seconds (needs -ring)
+ * -out <file>       export the results, as JSON if the file name ends in .json and CSV otherwise
+ *
+ * @author Adiswhar Rishi
+ */
+public class LoadGenerator {
+    private final int CLIENT_ID;
+    private final int ENTRY_ID;
+    private double rate;
+    private int concurrency;
+    private int duration;
+    private long timeoutMillis;
+    private KeyChooser keyChooser;
+    private int[] ring;
+    private int churnPeriod;
+    private String outFile;
+    private InetSocketAddress bindAddress;
+    private InetSocketAddress entryAddress;
+
+    private volatile boolean state;
+    private ServerSocketChannel responseServer;
+    //outstanding requests, keyed by request ID
+    private Map<Integer, Pending> outstanding;
+    private AtomicInteger nextRequestId;
+    private LatencyHistogram latencies;
+    private TreeMap<Integer, Long> hopCounts;
+    private AtomicLong sent;
+    private AtomicLong completed;
+    private AtomicLong failed;
+    private Map<Integer, Process> peerProcesses;
+    //threads that connect and send in open loop mode, so a slow entry peer does not hold up the schedule
+    private final int SENDERS = 16;
+    //open loop only, the longest a request was sent after it was due (nanoseconds)
+    private AtomicLong maxSendLag;
+
+    public LoadGenerator(int clientId, int entryId) {
+        CLIENT_ID = clientId;
+        ENTRY_ID = entryId;
+        concurrency = 1;
+        duration = 10;
+        timeoutMillis = 2000;
+        keyChooser = new UniformKeys(10000);
+        outstanding = new ConcurrentHashMap<Integer, Pending>();
+        //a run straight after another must not reuse its IDs, peers would drop the requests as repeats
+        nextRequestId = new AtomicInteger(ThreadLocalRandom.current().nextInt(1 << 30));
+        latencies = new LatencyHistogram();
+        hopCounts = new TreeMap<Integer, Long>();
+        sent = new AtomicLong();
+        completed = new AtomicLong();
+        failed = new AtomicLong();
+        maxSendLag = new AtomicLong();
+        peerProcesses = new ConcurrentHashMap<Integer, Process>();
+        bindAddress = PeerAddressTable.defaultAddress(clientId);
+        entryAddress = PeerAddressTable.defaultAddress(entryId);
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.err.println("Usage: java LoadGenerator <CLIENT ID> <ENTRY PEER ID> [options]");
+            System.exit(1);
+        }
+        LoadGenerator generator = new LoadGenerator(Integer.parseInt(args[0]), Integer.parseInt(args[1]));
+        try {
+            FileTracker.checkHashSetting();
+            generator.parseOptions(Arrays.copyOfRange(args, 2, args.length));
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            System.exit(1);
+        }
+        try {
+            generator.run();
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    private void parseOptions(String[] options) {
+        int keys = 10000;
+        double zipf = 0;
+        for (int i = 0; i < options.length; i++) {
+            if (i + 1 >= options.length) throw new IllegalArgumentException("Option " + options[i] + " needs a value");
+            String value = options[++i];
+            try {
+                switch (options[i - 1]) {
+                    case "-rate":
+                        rate = Double.parseDouble(value);
+                        break;
+                    case "-concurrency":
+                        concurrency = Integer.parseInt(value);
+                        break;
+                    case "-duration":
+                        duration = Integer.parseInt(value);
+                        break;
+                    case "-timeout":
+                        timeoutMillis = Long.parseLong(value);
+                        break;
+                    case "-keys":
+                        keys = Integer.parseInt(value);
+                        break;
+                    case "-zipf":
+                        zipf = Double.parseDouble(value);
+                        break;
+                    case "-ring":
+                        String[] ids = value.split(",");
+                        ring = new int[ids.length];
+                        for (int j = 0; j < ids.length; j++) ring[j] = Integer.parseInt(ids[j].trim());
+                        Arrays.sort(ring);
+                        break;
+                    case "-churn":
+                        churnPeriod = Integer.parseInt(value);
+                        break;
+                    case "-out":
+                        outFile = value;
+                        break;
+                    case "-bind":
+                        bindAddress = MessageFormatter.decodePeerAddress(CLIENT_ID + "@" + value);
+                        break;
+                    case "-entry":
+                        entryAddress = MessageFormatter.decodePeerAddress(ENTRY_ID + "@" + value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + options[i - 1]);
+                }
+            } catch (NumberFormatException ex) {
+                throw new IllegalArgumentException("Option " + options[i - 1] + " expects a number, got '" + value + "'");
+            }
+        }
+        if (bindAddress == null || entryAddress == null) throw new IllegalArgumentException("Addresses must be host:port");
+        if (keys < 1 || concurrency < 1 || duration < 1) throw new IllegalArgumentException("Option values must be positive");
+        if (churnPeriod > 0 && ring == null) throw new IllegalArgumentException("-churn needs -ring");
+        keyChooser = (zipf > 0) ? new ZipfKeys(keys, zipf) : new UniformKeys(keys);
+    }
+
+    public void run() throws IOException {
+        state = true;
+        responseServer = ServerSocketChannel.open();
+        responseServer.bind(bindAddress);
+        Thread receiver = new Thread(new ResponseReceiver(), "Response Receiver");
+        receiver.setDaemon(true);
+        receiver.start();
+
+        ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2);
+        if (churnPeriod > 0) {
+            spawnRing();
+            scheduler.scheduleAtFixedRate(new Churner(), churnPeriod, churnPeriod, TimeUnit.SECONDS);
+        }
+
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(duration);
+        if (rate > 0) {
+            //open loop, requests are issued on schedule whether or not earlier ones have been answered
+            //the schedule only hands requests to the senders, each request is timed from when it was due
+            final long period = Math.max((long) (TimeUnit.SECONDS.toNanos(1) / rate), 1);
+            final long first = System.nanoTime();
+            final ExecutorService senders = Executors.newFixedThreadPool(SENDERS);
+            scheduler.scheduleAtFixedRate(new Runnable() {
+                private long ticks;
+
+                @Override
+                public void run() {
+                    //a tick that runs late still knows when its request was due
+                    final long due = first + ticks++ * period;
+                    senders.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            issue(due);
+                        }
+                    });
+                }
+            }, 0, period, TimeUnit.NANOSECONDS);
+            scheduler.scheduleAtFixedRate(new Reaper(), timeoutMillis, Math.max(timeoutMillis / 4, 1), TimeUnit.MILLISECONDS);
+            sleepUntil(end);
+            scheduler.shutdownNow();
+            senders.shutdown();
+            try {
+                senders.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ignored) {
+            }
+            sleepUntil(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis));
+            new Reaper().run();
+        } else {
+            //closed loop, each worker waits for its response before sending the next request
+            ExecutorService workers = Executors.newFixedThreadPool(concurrency);
+            for (int i = 0; i < concurrency; i++) {
+                workers.execute(new ClosedLoopWorker(end));
+            }
+            workers.shutdown();
+            try {
+                workers.awaitTermination(duration + timeoutMillis / 1000 + 5, TimeUnit.SECONDS);
+            } catch (InterruptedException ignored) {
+            }
+            scheduler.shutdownNow();
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        state = false;
+        responseServer.close();
+        for (Process p : peerProcesses.values()) p.destroy();
+
+        printReport(elapsed);
+        if (outFile != null) export(elapsed);
+    }
+
+    /**
+     * Sends one file request to the entry peer and returns its bookkeeping entry
+     * Returns null if the entry peer could not be reached
+     *
+     * @param due when the request should have been sent (System.nanoTime), its latency is measured from here
+     */
+    private Pending issue(long due) {
+        long lag = System.nanoTime() - due;
+        long max = maxSendLag.get();
+        while (lag > max && !maxSendLag.compareAndSet(max, lag)) max = maxSendLag.get();
+        String filename = "" + keyChooser.next();
+        Pending p = new Pending(nextRequestId.incrementAndGet(), due);
+        outstanding.put(p.requestId, p);
+        sent.incrementAndGet();
+        try {
+            SocketChannel channel = SocketChannel.open(entryAddress);
+            ByteBuffer data = ByteBuffer.wrap(MessageFormatter.encodeFileRequest(CLIENT_ID, bindAddress,
+                    FileTracker.getFileId(filename), filename, p.requestId, MessageFormatter.MAX_HOPS));
+            while (data.hasRemaining()) channel.write(data);
+            channel.close();
+        } catch (IOException ex) {
+            if (outstanding.remove(p.requestId) != null) failed.incrementAndGet();
+            return null;
+        }
+        return p;
+    }
+
+    /**
+     * Records the response to a request, responses that are not FILE_FOUND count as failures
+     *
+     * @param hops the number of peers the request visited
+     */
+    private void complete(int requestId, int status, int hops) {
+        Pending p = outstanding.remove(requestId);
+        if (p == null) return; //a late response for a request that already timed out
+        if (status != MessageFormatter.FILE_FOUND) {
+            failed.incrementAndGet();
+        } else {
+            latencies.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - p.startNanos));
+            completed.incrementAndGet();
+            synchronized (hopCounts) {
+                Long count = hopCounts.get(hops);
+                hopCounts.put(hops, (count == null) ? 1 : count + 1);
+            }
+        }
+        p.done.countDown();
+    }
+
+    private void printReport(double elapsed) {
+        System.out.printf("Duration: %.2fs%n", elapsed);
+        System.out.printf("Requests: %d sent, %d completed, %d failed%n", sent.get(), completed.get(), failed.get());
+        System.out.printf("Throughput: %.1f requests/s%n", completed.get() / elapsed);
+        if (rate > 0) {
+            System.out.printf("Send rate: %.1f of %.1f requests/s targeted (%.1f%% short), latest send %.1f ms after due%n",
+                    sent.get() / (double) duration, rate, getShortfall(), maxSendLag.get() / 1e6);
+        }
+        System.out.printf("Latency (us): mean %.0f, p50 %d, p99 %d, p999 %d, max %d%n", latencies.getMean(),
+                latencies.getValueAtPercentile(50), latencies.getValueAtPercentile(99),
+                latencies.getValueAtPercentile(99.9), latencies.getMax());
+        synchronized (hopCounts) {
+            for (Map.Entry<Integer, Long> e : hopCounts.entrySet()) {
+                System.out.println("Hops " + e.getKey() + ": " + e.getValue());
+            }
+        }
+    }
+
+    /**
+     * How far the requests sent in open loop mode fell short of the target rate, as a percentage
+     */
+    private double getShortfall() {
+        return Math.max(0, 100 * (1 - sent.get() / (rate * duration)));
+    }
+
+    private void export(double elapsed) {
+        boolean json = outFile.endsWith(".json");
+        try {
+            PrintWriter out = new PrintWriter(new FileWriter(new File(outFile)));
+            ArrayList<String[]> rows = new ArrayList<String[]>();
+            rows.add(new String[]{"duration_s", String.format("%.3f", elapsed)});
+            rows.add(new String[]{"sent", "" + sent.get()});
+            rows.add(new String[]{"completed", "" + completed.get()});
+            rows.add(new String[]{"failed", "" + failed.get()});
+            rows.add(new String[]{"throughput_rps", String.format("%.3f", completed.get() / elapsed)});
+            if (rate > 0) {
+                rows.add(new String[]{"target_rps", String.format("%.3f", rate)});
+                rows.add(new String[]{"send_rps", String.format("%.3f", sent.get() / (double) duration)});
+                rows.add(new String[]{"send_shortfall_pct", String.format("%.1f", getShortfall())});
+                rows.add(new String[]{"max_send_lag_us", "" + TimeUnit.NANOSECONDS.toMicros(maxSendLag.get())});
+            }
+            rows.add(new String[]{"latency_mean_us", String.format("%.1f", latencies.getMean())});
+            rows.add(new String[]{"latency_p50_us", "" + latencies.getValueAtPercentile(50)});
+            rows.add(new String[]{"latency_p99_us", "" + latencies.getValueAtPercentile(99)});
+            rows.add(new String[]{"latency_p999_us", "" + latencies.getValueAtPercentile(99.9)});
+            rows.add(new String[]{"latency_max_us", "" + latencies.getMax()});
+            if (json) {
+                out.println("{");
+                for (String[] row : rows) {
+                    out.println("  \"" + row[0] + "\": " + row[1] + ",");
+                }
+                out.print("  \"hops\": {");
+                String separator = "";
+                synchronized (hopCounts) {
+                    for (Map.Entry<Integer, Long> e : hopCounts.entrySet()) {
+                        out.print(separator + "\"" + e.getKey() + "\": " + e.getValue());
+                        separator = ", ";
+                    }
+                }
+                out.println("}");
+                out.println("}");
+            } else {
+                out.println("metric,value");
+                for (String[] row : rows) {
+                    out.println(row[0] + "," + row[1]);
+                }
+                synchronized (hopCounts) {
+                    for (Map.Entry<Integer, Long> e : hopCounts.entrySet()) {
+                        out.println("hops_" + e.getKey() + "," + e.getValue());
+                    }
+                }
+            }
+            out.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Starts every peer in the ring as a local process, each with its next two peers as successors
+     */
+    private void spawnRing() throws IOException {
+        for (int id : ring) {
+            startPeer(id);
+        }
+        //give the peers a chance to bind and exchange their first pings
+        sleepUntil(System.nanoTime() + TimeUnit.SECONDS.toNanos(2));
+    }
+
+    private void startPeer(int id) throws IOException {
+        int index = Arrays.binarySearch(ring, id);
+        ArrayList<String> command = new ArrayList<String>();
+        command.add("java");
+        //spawned peers share our network emulator scenario, state directory and file hash
+        for (String property : new String[]{"cdht.scenario", "cdht.stateDir", "cdht.hash"}) {
+            if (System.getProperty(property) != null) command.add("-D" + property + "=" + System.getProperty(property));
+        }
+        command.addAll(Arrays.asList("-cp", System.getProperty("java.class.path"), "cdht_ex",
+                "" + id, "" + ring[(index + 1) % ring.length], "" + ring[(index + 2) % ring.length]));
+        ProcessBuilder builder = new ProcessBuilder(command);
+        builder.redirectErrorStream(true);
+        builder.redirectOutput(ProcessBuilder.Redirect.DISCARD);
+        peerProcesses.put(id, builder.start());
+    }
+
+    private static void sleepUntil(long deadline) {
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(remaining);
+            } catch (InterruptedException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Bookkeeping for a single request
+     */
+    private static class Pending {
+        int requestId;
+        long startNanos;
+        CountDownLatch done;
+
+        public Pending(int requestId, long startNanos) {
+            this.requestId = requestId;
+            this.startNanos = startNanos;
+            this.done = new CountDownLatch(1);
+        }
+    }
+
+    private class ClosedLoopWorker implements Runnable {
+        //wait before retrying an unreachable entry peer, doubled on every failure in a row (milliseconds)
+        private final long MIN_BACKOFF = 10;
+        private final long MAX_BACKOFF = 1000;
+        private long end;
+
+        public ClosedLoopWorker(long end) {
+            this.end = end;
+        }
+
+        @Override
+        public void run() {
+            long backoff = MIN_BACKOFF;
+            while (System.nanoTime() < end) {
+                Pending p = issue(System.nanoTime());
+                try {
+                    if (p == null) {
+                        //the entry peer is unreachable, issue() has already counted the failure
+                        Thread.sleep(backoff);
+                        backoff = Math.min(backoff * 2, MAX_BACKOFF);
+                        continue;
+                    }
+                    backoff = MIN_BACKOFF;
+                    if (!p.done.await(timeoutMillis, TimeUnit.MILLISECONDS) && outstanding.remove(p.requestId) != null) {
+                        failed.incrementAndGet();
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Fails any open loop request that has been outstanding for longer than the timeout
+     */
+    private class Reaper implements Runnable {
+        @Override
+        public void run() {
+            long cutoff = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            for (Pending p : outstanding.values()) {
+                if (p.startNanos < cutoff && outstanding.remove(p.requestId) != null) {
+                    failed.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    /**
+     * Kills a random peer, then starts it again with its original successors one period later
+     */
+    private class Churner implements Runnable {
+        private int victim = -1;
+
+        @Override
+        public void run() {
+            try {
+                if (victim != -1) {
+                    System.out.println("Rejoining peer " + victim + ".");
+                    startPeer(victim);
+                    victim = -1;
+                } else {
+                    victim = ring[ThreadLocalRandom.current().nextInt(ring.length)];
+                    if (victim == ENTRY_ID) {
+                        victim = -1; //killing the entry peer would only measure connection failures
+                        return;
+                    }
+                    System.out.println("Killing peer " + victim + ".");
+                    Process p = peerProcesses.remove(victim);
+                    if (p != null) p.destroyForcibly();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private class ResponseReceiver implements Runnable {
+        @Override
+        public void run() {
+            ByteBuffer storeBuffer = ByteBuffer.allocate(MessageFormatter.MAX_TCP_SIZE);
+            while (state) {
+                try {
+                    SocketChannel socketChannel = responseServer.accept();
+                    storeBuffer.clear();
+                    while (storeBuffer.hasRemaining() && socketChannel.read(storeBuffer) != -1) ;
+                    socketChannel.close();
+                    byte[] response = Arrays.copyOf(storeBuffer.array(), storeBuffer.position());
+                    if (MessageFormatter.isFileResponse(response)) {
+                        ArrayList<Integer> decodedMessage = MessageFormatter.decodeFileResponse(response);
+                        complete(decodedMessage.get(4), decodedMessage.get(2), decodedMessage.get(5));
+                    }
+                } catch (IOException e) {
+                    if (state) e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private interface KeyChooser {
+        int next();
+    }
+
+    private static class UniformKeys implements KeyChooser {
+        private int keys;
+
+        public UniformKeys(int keys) {
+            this.keys = keys;
+        }
+
+        @Override
+        public int next() {
+            return ThreadLocalRandom.current().nextInt(keys);
+        }
+    }
+
+    /**
+     * Draws keys from a zipf distribution, key 0 is the most popular
+     */
+    private static class ZipfKeys implements KeyChooser {
+        private double[] cdf;
+
+        public ZipfKeys(int keys, double exponent) {
+            cdf = new double[keys];
+            double total = 0;
+            for (int i = 0; i < keys; i++) {
+                total += 1 / Math.pow(i + 1, exponent);
+                cdf[i] = total;
+            }
+            for (int i = 0; i < keys; i++) {
+                cdf[i] /= total;
+            }
+        }
+
+        @Override
+        public int next() {
+            int i = Arrays.binarySearch(cdf, ThreadLocalRandom.current().nextDouble());
+            return Math.min((i < 0) ? -i - 1 : i, cdf.length - 1);
+        }
+    }
+}
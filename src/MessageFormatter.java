@@ -1,5 +1,9 @@
+import java.io.UnsupportedEncodingException;
 import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -10,14 +14,52 @@ import java.util.regex.Pattern;
  * @author Adiswhar Rishi
  */
 public class MessageFormatter {
-    public static int MAX_PING_SIZE = 2;
-    public static int MAX_TCP_SIZE = 17;
-    private static String departingPattern = "D:(\\d+)(,\\d+)+";
-    private static String sRequestPattern = "SR:(\\d+)";
-    private static String sResponsePattern = "Sr:(\\d+)(,\\d+)+";
-    private static String fileRequestPattern = "FR:\\d+,\\d+";
-    private static String fileResponsePattern = "Fr:(\\d+)(,\\d+){3}";
-
+    public static int MAX_PING_SIZE = 3;
+    public static int MAX_TCP_SIZE = 512;
+    //a message sent over UDP has a header of at most "U:255,2147483647|"
+    public static int MAX_UDP_SIZE = MAX_TCP_SIZE + 17;
+    //a request is never forwarded more times than there can be peers in the ring
+    public static int MAX_HOPS = 255;
+    //longest a file name can be once escaped, so a file request still fits in one message
+    public static int MAX_NAME_SIZE = 256;
+    //status field of a file response
+    public static final int FILE_FOUND = 1;
+    public static final int FILE_HOP_LIMIT = 0;
+    public static final int FILE_NO_ROUTE = 2;
+    public static final int FILE_LOOP = 3;
+    //status field of a range chunk
+    public static final int RANGE_MORE = 0;
+    public static final int RANGE_LAST = 1;
+    public static final int RANGE_FAILED = 2;
+    //kind field of a broadcast
+    public static final char BROADCAST_NOTICE = 'N';
+    public static final char BROADCAST_SEARCH = 'S';
+    //a peer is written as its ID, optionally followed by the address it can be reached at - 12@127.0.0.12:50012
+    private static String peerPattern = "\\d+(@[^,@]+:\\d+)?";
+    private static String departingPattern = "D:" + peerPattern + "(," + peerPattern + ")+";
+    private static String sRequestPattern = "SR:" + peerPattern;
+    private static String sResponsePattern = "Sr:" + peerPattern + "(," + peerPattern + ")+";
+    //file names are escaped so they never contain a comma or anything that looks like an address
+    private static String namePattern = "[\\w.*%+-]+";
+    private static String fileRequestPattern = "FR:" + peerPattern + "(,\\d+){3}," + namePattern;
+    private static String fileResponsePattern = "Fr:" + peerPattern + "(,\\d+){5}," + namePattern;
+    private static String rangeRequestPattern = "RQ:" + peerPattern + "(,\\d+){5}";
+    private static String rangeChunkPattern = "RC:" + peerPattern + "(,\\d+){3,}";
+    private static String rangeAckPattern = "RA:" + peerPattern + "(,\\d+){2}";
+    private static String fingerLookupPattern = "FL:" + peerPattern + "(,\\d+){2}";
+    private static String fingerAnswerPattern = "Fl:" + peerPattern + ",\\d+";
+    private static String broadcastPattern = "BC:" + peerPattern + "(,\\d+){4},[NS]," + namePattern;
+    private static String broadcastReplyPattern = "Br:" + peerPattern + "(,\\d+){5}(,[0-9a-f]+){4}";
+    //version, k, m, object length, fragment index and the fragment itself
+    private static String fragmentPattern = "(,\\d+){5},[0-9a-f]+";
+    private static String fragmentStorePattern = "EP:" + peerPattern + ",\\d+,\\d+,-?\\d+,\\d+" + fragmentPattern;
+    private static String fragmentAckPattern = "Ep:" + peerPattern + "(,\\d+){3}";
+    private static String fragmentFetchPattern = "EG:" + peerPattern + ",\\d+,\\d+,-?\\d+,\\d+,\\d+";
+    private static String fragmentReplyPattern = "Eg:" + peerPattern + "(,\\d+){2}" + fragmentPattern;
+    private static String fragmentRepairPattern = "ER:" + peerPattern + ",\\d+";
+    private static Pattern udpFramePattern = Pattern.compile("U:(\\d+),(\\d+)\\|.*", Pattern.DOTALL);
+    private static String udpAckPattern = "A:\\d+,\\d+";
+    private static Pattern addressPattern = Pattern.compile("(\\d+)@([^,@]+):(\\d+)");
 
     /* ------------------------ UDP encoding functions ----------------------------- */
 
@@ -25,10 +67,11 @@ public class MessageFormatter {
      * Creates an byte string containing the necessary ping data
      *
      * @param seqNum the seq number of the packet
+     * @param peerId the ID of the peer sending the ping, range 0-255
      * @return the byte array
      */
-    public static byte[] encodePingRequest(byte seqNum) {
-        return new byte[]{seqNum, 'R'};
+    public static byte[] encodePingRequest(byte seqNum, int peerId) {
+        return new byte[]{seqNum, 'R', (byte) peerId};
     }
 
     /**
@@ -36,13 +79,18 @@ public class MessageFormatter {
      * <em>Fails gracefully if the request given in is of the wrong type</em>
      *
      * @param request The request for which the response must be generated
+     * @param peerId  the ID of the peer responding, range 0-255
      * @return the byte array
      */
-    public static byte[] encodePingResponse(byte[] request) {
+    public static byte[] encodePingResponse(byte seqNum, int peerId) {
+        return new byte[]{seqNum, 'r', (byte) peerId};
+    }
+
+    public static byte[] encodePingResponse(byte[] request, int peerId) {
         if (!isPingRequest(request)) {
             System.err.println("INVALID PING REQUEST");
         } else {
-            return new byte[]{request[0], 'r'};
+            return new byte[]{request[0], 'r', (byte) peerId};
         }
         return null;
     }
@@ -51,41 +99,40 @@ public class MessageFormatter {
      * Checks if request given is a ping request
      */
     public static boolean isPingRequest(byte[] request) {
-        return request.length == 2 && request[1] == 'R';
+        return request.length == 3 && request[1] == 'R';
     }
 
     /**
      * Checks if request is a ping response
      */
     public static boolean isPingResponse(byte[] request) {
-        return request.length == 2 && request[1] == 'r';
+        return request.length == 3 && request[1] == 'r';
     }
 
     /**
-     * Determines what peer sent the message
-     * NOTE: the socketAddress must have been received by a UDP message
+     * Determines what peer sent the ping
+     * The sender writes its own ID into the ping so this does not depend on the port it was sent from
      *
-     * @param peerAddress the address information
+     * @param request a ping request or response
      * @return The peer ID
      */
-    public static int determineUdpPeer(InetSocketAddress peerAddress) {
-        return peerAddress.getPort() - cdht_ex.PORT_BASE;
+    public static int determineUdpPeer(byte[] request) {
+        return request[2] & 0xFF;
     }
 
     /**
      * Creates and returns a Ping object. The object is populated with the request data
      * The request must be a ping
      *
-     * @param request     the request received
-     * @param peerAddress the address the request came from
+     * @param request the request received
      * @return A Ping object containing the response data or NULL if wrong request type
      */
-    public static PingData decodePing(byte[] request, InetSocketAddress peerAddress) {
+    public static PingData decodePing(byte[] request) {
         if (!(isPingRequest(request) || isPingResponse(request))) {
             System.err.println("Request type not recognised");
             return null;
         }
-        return new Ping(request[0], MessageFormatter.determineUdpPeer(peerAddress));
+        return new Ping(request[0], MessageFormatter.determineUdpPeer(request));
     }
 
     /**
@@ -117,27 +164,205 @@ public class MessageFormatter {
         }
     }
 
+    /**
+     * Wraps a TCP message so it can be sent as a datagram instead
+     *
+     * @param peerId    the peer sending the datagram
+     * @param messageId chosen by the sending peer, the receiver acknowledges it and uses it to drop repeats
+     * @param message   any TCP message
+     */
+    public static byte[] encodeUdpFrame(int peerId, int messageId, byte[] message) {
+        byte[] header = ("U:" + peerId + "," + messageId + "|").getBytes();
+        byte[] frame = new byte[header.length + message.length];
+        System.arraycopy(header, 0, frame, 0, header.length);
+        System.arraycopy(message, 0, frame, header.length, message.length);
+        return frame;
+    }
+
+    public static boolean isUdpFrame(byte[] datagram) {
+        return datagram.length > 2 && datagram[0] == 'U' && datagram[1] == ':'
+                && udpFramePattern.matcher(new String(datagram)).matches();
+    }
+
+    /**
+     * The array returned is -
+     * [0] -> sending peer
+     * [1] -> message ID
+     */
+    public static ArrayList<Integer> decodeUdpFrame(byte[] datagram) {
+        String header = new String(datagram);
+        header = header.substring(2, header.indexOf('|'));
+        ArrayList<Integer> r = new ArrayList<Integer>();
+        for (String field : header.split(",")) {
+            r.add(Integer.parseInt(field));
+        }
+        return r;
+    }
+
+    /**
+     * Returns the TCP message carried by a datagram
+     */
+    public static byte[] decodeUdpFrameMessage(byte[] datagram) {
+        int bar = 0;
+        while (datagram[bar] != '|') bar++;
+        return Arrays.copyOfRange(datagram, bar + 1, datagram.length);
+    }
+
+    public static byte[] encodeUdpAck(int peerId, int messageId) {
+        return ("A:" + peerId + "," + messageId).getBytes();
+    }
+
+    public static boolean isUdpAck(byte[] datagram) {
+        return datagram.length > 2 && datagram[0] == 'A' && datagram[1] == ':'
+                && new String(datagram).matches(udpAckPattern);
+    }
+
+    /**
+     * The array returned is -
+     * [0] -> acknowledging peer
+     * [1] -> message ID
+     */
+    public static ArrayList<Integer> decodeUdpAck(byte[] datagram) {
+        return decodeFields(datagram);
+    }
+
+    /* ------------------------ Peer address functions ----------------------------- */
+
+    /**
+     * Writes a peer as it appears in a message - ID@host:port
+     */
+    public static String encodePeer(int peerId, InetSocketAddress address) {
+        String host = address.getHostString();
+        if (host.contains(":")) host = "[" + host + "]"; //IPv6 literal
+        return peerId + "@" + host + ":" + address.getPort();
+    }
+
+    /**
+     * Returns the ID part of a peer as written by encodePeer, the address part is optional
+     */
+    public static int decodePeerId(String peer) {
+        int at = peer.indexOf('@');
+        return Integer.parseInt(((at == -1) ? peer : peer.substring(0, at)).trim());
+    }
+
+    /**
+     * Returns the address part of a peer as written by encodePeer
+     * Returns null if the peer has no address part
+     *
+     * @throws NumberFormatException if the port is not a number
+     */
+    public static InetSocketAddress decodePeerAddress(String peer) {
+        int at = peer.indexOf('@');
+        int colon = peer.lastIndexOf(':');
+        if (at == -1 || colon < at) return null;
+        String host = peer.substring(at + 1, colon);
+        if (host.startsWith("[") && host.endsWith("]")) host = host.substring(1, host.length() - 1);
+        return new InetSocketAddress(host, Integer.parseInt(peer.substring(colon + 1)));
+    }
+
+    /**
+     * Adds every peer address written in the message to the address table
+     */
+    public static void learnAddresses(byte[] data, PeerAddressTable table) {
+        Matcher m = addressPattern.matcher(new String(data).trim());
+        while (m.find()) {
+            String host = m.group(2);
+            if (host.startsWith("[") && host.endsWith("]")) host = host.substring(1, host.length() - 1);
+            table.put(Integer.parseInt(m.group(1)), new InetSocketAddress(host, Integer.parseInt(m.group(3))));
+        }
+    }
+
+    /**
+     * Splits the fields of a TCP message and returns the leading number of each one
+     * Any address attached to a peer is dropped, use learnAddresses to keep them
+     */
+    private static ArrayList<Integer> decodeFields(byte[] data) {
+        String input = new String(data).trim();
+        input = input.substring(input.indexOf(':') + 1);
+        ArrayList<Integer> r = new ArrayList<Integer>();
+        for (String field : input.split(",")) {
+            r.add(decodePeerId(field));
+        }
+        return r;
+    }
+
     /* ------------------------ TCP encoding functions ----------------------------- */
 
     /**
      * Determines what peer sent the message
-     * NOTE: the socketAddress must have been received by a UDP message
+     * The sending peer is always the first field of the message
      *
      * @param request the request given by the peer
      * @return The peer ID
      */
     public static int determineTcpPeer(byte[] request) {
-        String input = new String(request);
-        input = input.trim();
-        Matcher m = Pattern.compile("\\d+").matcher(input);
-        m.find();
-        return Integer.parseInt(m.group());
+        return decodeFields(request).get(0);
+    }
+
+    /**
+     * Checks if the message keeps the ring together (departures and successor requests/responses)
+     * Only the prefix is looked at so this is cheap enough to call before a message is fully read
+     */
+    public static boolean isControlMessage(byte[] data) {
+        return data.length >= 2 && (data[0] == 'D' && data[1] == ':'
+                || data.length >= 3 && (data[0] == 'S' && (data[1] == 'R' || data[1] == 'r') && data[2] == ':'));
+    }
+
+    /**
+     * Checks if the message is one of the small messages passed from peer to peer during a lookup or ring repair
+     * These are the messages that can be sent over UDP - departures, successor requests/responses,
+     * file requests and finger lookups/answers.
+     * File responses are not included, they go to whoever made the request and that may not be a peer.
+     */
+    public static boolean isLookupMessage(byte[] data) {
+        return isControlMessage(data) || data.length >= 3 && (data[0] == 'F' && data[2] == ':'
+                && (data[1] == 'R' || data[1] == 'L' || data[1] == 'l'));
     }
 
-    public static byte[] encodeDepartingMessage(int peerId, List<Integer> successors) {
-        String s = "D:" + peerId;
+    /**
+     * Returns the letters in front of the ':' of a message, such as "FR" for a file request, for recording events
+     * Only the prefix is looked at, "?" is returned for anything without one
+     */
+    public static String messageType(byte[] data) {
+        for (int i = 0; i < data.length && i < 3; i++) {
+            if (data[i] == ':') return new String(data, 0, i);
+        }
+        return "?";
+    }
+
+    /**
+     * Returns the hop a file request or response is on without checking the rest of the message, 0 for any other
+     * message or one that can not be read. A request's hop is worked out from its TTL the same way the receiver does.
+     */
+    public static int peekHop(byte[] data) {
+        if (data.length < 3 || data[0] != 'F' || data[2] != ':' || data[1] != 'R' && data[1] != 'r') return 0;
+        String[] fields = new String(data).split(",", 7);
+        try {
+            if (data[1] == 'R') return (fields.length > 3) ? MAX_HOPS - Integer.parseInt(fields[3]) + 1 : 0;
+            return (fields.length > 5) ? Integer.parseInt(fields[5]) : 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Returns the ID of the peer in the first field without decoding the rest of the message, or -1 if there is none
+     */
+    public static int peekSender(byte[] data) {
+        int i = 0;
+        while (i < data.length && i < 3 && data[i] != ':') i++;
+        if (i == data.length || data[i] != ':') return -1;
+        int id = -1;
+        for (i++; i < data.length && data[i] >= '0' && data[i] <= '9' && id < 256; i++) {
+            id = Math.max(id, 0) * 10 + (data[i] - '0');
+        }
+        return id;
+    }
+
+    public static byte[] encodeDepartingMessage(int peerId, List<Integer> successors, PeerAddressTable table) {
+        String s = "D:" + encodePeer(peerId, table.get(peerId));
         for (int i : successors) {
-            s += "," + i;
+            s += "," + encodePeer(i, table.get(i));
         }
         return s.getBytes();
     }
@@ -156,18 +381,11 @@ public class MessageFormatter {
      * NOTE: The array may contain 1 or 2 successors
      */
     public static ArrayList<Integer> decodeDepartingMessage(byte[] data) {
-        String input = new String(data).trim();
-        Pattern p = Pattern.compile("\\d+");
-        Matcher m = p.matcher(input);
-        ArrayList<Integer> r = new ArrayList<Integer>();
-        while (m.find()) {
-            r.add(Integer.parseInt(m.group()));
-        }
-        return r;
+        return decodeFields(data);
     }
 
-    public static byte[] encodeSuccessorRequest(int requestingPeer) {
-        return ("SR:" + requestingPeer).getBytes();
+    public static byte[] encodeSuccessorRequest(int requestingPeer, InetSocketAddress address) {
+        return ("SR:" + encodePeer(requestingPeer, address)).getBytes();
     }
 
     public static boolean isSuccessorRequest(byte[] request) {
@@ -176,10 +394,10 @@ public class MessageFormatter {
         return input.matches(sRequestPattern);
     }
 
-    public static byte[] encodeSuccessorResponse(int peerId, List<Integer> successors) {
-        String s = "Sr:" + peerId;
+    public static byte[] encodeSuccessorResponse(int peerId, List<Integer> successors, PeerAddressTable table) {
+        String s = "Sr:" + encodePeer(peerId, table.get(peerId));
         for (int i : successors) {
-            s += "," + i;
+            s += "," + encodePeer(i, table.get(i));
         }
         return s.getBytes();
     }
@@ -192,13 +410,7 @@ public class MessageFormatter {
      * NOTE: The array may contain 1 or 2 successors
      */
     public static ArrayList<Integer> decodeSuccessorResponse(byte[] data) {
-        String input = new String(data);
-        Matcher m = Pattern.compile("\\d+").matcher(input);
-        ArrayList<Integer> r = new ArrayList<Integer>();
-        while (m.find()) {
-            r.add(Integer.parseInt(m.group()));
-        }
-        return r;
+        return decodeFields(data);
     }
 
     public static boolean isSuccessorResponse(byte[] request) {
@@ -207,12 +419,29 @@ public class MessageFormatter {
         return input.matches(sResponsePattern);
     }
 
-    public static byte[] encodeFileRequest(int peerId, String filename) {
-        return ("FR:" + peerId + "," + filename).getBytes();
+    /**
+     * The file is hashed once by the requesting peer, the peers it passes through only look at the key
+     *
+     * @param peerId    the peer that started the request
+     * @param address   where the response should be sent
+     * @param fileId    the file name hashed with FileTracker.getFileId
+     * @param requestId chosen by the requesting peer, unique among its own requests
+     * @param ttl       number of peers the request may still visit, starts at MAX_HOPS
+     */
+    public static byte[] encodeFileRequest(int peerId, InetSocketAddress address, int fileId, String filename,
+                                           int requestId, int ttl) {
+        return ("FR:" + encodePeer(peerId, address) + "," + fileId + "," + requestId + "," + ttl + ","
+                + encodeName(filename)).getBytes();
     }
 
-    public static byte[] encodeFileResponse(int peerId, String filename, boolean hasFile, int requestingPeer) {
-        return ("Fr:" + peerId + "," + filename + "," + ((hasFile) ? "1" : "0") + "," + requestingPeer).getBytes();
+    /**
+     * @param status one of FILE_FOUND, FILE_HOP_LIMIT, FILE_NO_ROUTE or FILE_LOOP
+     * @param hops   number of peers the request visited
+     */
+    public static byte[] encodeFileResponse(int peerId, InetSocketAddress address, int fileId, String filename,
+                                            int status, int requestingPeer, int requestId, int hops) {
+        return ("Fr:" + encodePeer(peerId, address) + "," + fileId + "," + status + "," + requestingPeer + ","
+                + requestId + "," + hops + "," + encodeName(filename)).getBytes();
     }
 
     public static boolean isFileRequest(byte[] request) {
@@ -230,38 +459,506 @@ public class MessageFormatter {
     /**
      * The array returned is -
      * [0] -> requesting peer
-     * [1] -> file name
+     * [1] -> file ID
+     * [2] -> request ID
+     * [3] -> ttl
+     * Use decodeFileName for the file name
      *
      * @param request the request
      */
     public static ArrayList<Integer> decodeFileRequest(byte[] request) {
-        String input = new String(request);
-        input = input.trim();
-        Matcher m = Pattern.compile("\\d+").matcher(input);
-        ArrayList<Integer> r = new ArrayList<Integer>();
-        while (m.find()) {
-            r.add(Integer.parseInt(m.group()));
-        }
-        return r;
+        return decodeLeadingFields(request, 4);
     }
 
     /**
      * The array returned is -
      * [0] -> responding peer
-     * [1] -> file name (un-hashed)
-     * [2] -> 1 | 0 (based on success or failure, NOTE - unnecessary)
+     * [1] -> file ID
+     * [2] -> status, FILE_FOUND or the reason the request failed
      * [3] -> requesting peer (the peer who started the request)
+     * [4] -> request ID
+     * [5] -> number of peers the request visited
+     * Use decodeFileName for the file name
      *
      * @param request the request
      */
     public static ArrayList<Integer> decodeFileResponse(byte[] request) {
-        String input = new String(request);
-        input = input.trim();
-        Matcher m = Pattern.compile("\\d+").matcher(input);
+        return decodeLeadingFields(request, 6);
+    }
+
+    /**
+     * Returns the file name carried by a file request or file response, the name is always the last field
+     */
+    public static String decodeFileName(byte[] request) {
+        String input = new String(request).trim();
+        try {
+            return URLDecoder.decode(input.substring(input.lastIndexOf(',') + 1), "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Escapes a file name so it can be put in a message
+     */
+    public static String encodeName(String filename) {
+        try {
+            return URLEncoder.encode(filename, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            //every JVM has UTF-8
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * A request for every key in [from, to), it is routed to the owner of from
+     *
+     * @param peerId    the peer that started the scan
+     * @param address   where the chunks should be sent
+     * @param requestId chosen by the requesting peer
+     * @param seq       sequence number the next chunk should be given
+     * @param ttl       number of peers the request may still visit
+     */
+    public static byte[] encodeRangeRequest(int peerId, InetSocketAddress address, int requestId, int from, int to,
+                                            int seq, int ttl) {
+        return ("RQ:" + encodePeer(peerId, address) + "," + requestId + "," + from + "," + to + "," + seq + ","
+                + ttl).getBytes();
+    }
+
+    public static boolean isRangeRequest(byte[] request) {
+        return new String(request).trim().matches(rangeRequestPattern);
+    }
+
+    /**
+     * The array returned is -
+     * [0] -> requesting peer
+     * [1] -> request ID
+     * [2] -> from, the next key to be returned
+     * [3] -> to, the end of the range (exclusive)
+     * [4] -> sequence number of the next chunk
+     * [5] -> ttl
+     */
+    public static ArrayList<Integer> decodeRangeRequest(byte[] request) {
+        return decodeFields(request);
+    }
+
+    /**
+     * @param status one of RANGE_MORE, RANGE_LAST or RANGE_FAILED
+     */
+    public static byte[] encodeRangeChunk(int peerId, InetSocketAddress address, int requestId, int seq, int status,
+                                          List<Integer> keys) {
+        String s = "RC:" + encodePeer(peerId, address) + "," + requestId + "," + seq + "," + status;
+        for (int k : keys) {
+            s += "," + k;
+        }
+        return s.getBytes();
+    }
+
+    public static boolean isRangeChunk(byte[] request) {
+        return new String(request).trim().matches(rangeChunkPattern);
+    }
+
+    /**
+     * The array returned is -
+     * [0] -> the peer that sent the chunk
+     * [1] -> request ID
+     * [2] -> sequence number
+     * [3] -> status
+     * [4...] -> the keys, in order
+     */
+    public static ArrayList<Integer> decodeRangeChunk(byte[] request) {
+        return decodeFields(request);
+    }
+
+    public static byte[] encodeRangeAck(int requestingPeer, int requestId, int seq) {
+        return ("RA:" + requestingPeer + "," + requestId + "," + seq).getBytes();
+    }
+
+    public static boolean isRangeAck(byte[] request) {
+        return new String(request).trim().matches(rangeAckPattern);
+    }
+
+    /**
+     * The array returned is -
+     * [0] -> requesting peer
+     * [1] -> request ID
+     * [2] -> sequence number of the chunk being acknowledged
+     */
+    public static ArrayList<Integer> decodeRangeAck(byte[] request) {
+        return decodeFields(request);
+    }
+
+    /**
+     * Asks for the peer that owns a key, it is routed towards the key until it reaches that peer
+     *
+     * @param peerId  the peer that wants to know
+     * @param address where the answer should be sent
+     * @param ttl     number of peers the lookup may still visit
+     */
+    public static byte[] encodeFingerLookup(int peerId, InetSocketAddress address, int key, int ttl) {
+        return ("FL:" + encodePeer(peerId, address) + "," + key + "," + ttl).getBytes();
+    }
+
+    public static boolean isFingerLookup(byte[] request) {
+        return new String(request).trim().matches(fingerLookupPattern);
+    }
+
+    /**
+     * The array returned is -
+     * [0] -> requesting peer
+     * [1] -> key
+     * [2] -> ttl
+     */
+    public static ArrayList<Integer> decodeFingerLookup(byte[] request) {
+        return decodeFields(request);
+    }
+
+    /**
+     * Sent by the owner of a key to the peer that looked it up
+     */
+    public static byte[] encodeFingerAnswer(int peerId, InetSocketAddress address, int key) {
+        return ("Fl:" + encodePeer(peerId, address) + "," + key).getBytes();
+    }
+
+    public static boolean isFingerAnswer(byte[] request) {
+        return new String(request).trim().matches(fingerAnswerPattern);
+    }
+
+    /**
+     * The array returned is -
+     * [0] -> the peer that owns the key
+     * [1] -> key
+     */
+    public static ArrayList<Integer> decodeFingerAnswer(byte[] request) {
+        return decodeFields(request);
+    }
+
+    /**
+     * A message for every peer from this peer up to (not including) limit
+     * The receiving peer splits that part of the ring among the peers it knows of and sends each one a copy
+     *
+     * @param peerId   the peer passing the message on, replies are sent to it
+     * @param origin   the peer that started the broadcast
+     * @param limit    first peer ID the receiver is not responsible for
+     * @param budget   time left to reply to peerId (milliseconds)
+     * @param kind     BROADCAST_NOTICE or BROADCAST_SEARCH
+     * @param argument the notice text or the search pattern, it is escaped the same way as a file name so that
+     *                 nothing in it can be mistaken for a field or a peer address
+     */
+    public static byte[] encodeBroadcast(int peerId, InetSocketAddress address, int origin, int broadcastId,
+                                         int limit, int budget, char kind, String argument) {
+        return ("BC:" + encodePeer(peerId, address) + "," + origin + "," + broadcastId + "," + limit + "," + budget
+                + "," + kind + "," + encodeName(argument)).getBytes();
+    }
+
+    public static boolean isBroadcast(byte[] request) {
+        return new String(request).trim().matches(broadcastPattern);
+    }
+
+    public static BroadcastData decodeBroadcast(byte[] request) {
+        String[] fields = new String(request).trim().substring(3).split(",", 7);
+        String argument;
+        try {
+            argument = URLDecoder.decode(fields[6], "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        return new Broadcast(decodePeerId(fields[0]), Integer.parseInt(fields[1]), Integer.parseInt(fields[2]),
+                Integer.parseInt(fields[3]), Integer.parseInt(fields[4]), fields[5].charAt(0), argument);
+    }
+
+    /**
+     * The combined result of a broadcast from every peer below the sender
+     *
+     * @param peers   number of peers that handled the broadcast
+     * @param missing number of parts of the ring that did not reply in time
+     * @param depth   most rounds it took to reach one of the peers
+     * @param matches a 256 bit set of the keys that matched a search
+     */
+    public static byte[] encodeBroadcastReply(int peerId, InetSocketAddress address, int origin, int broadcastId,
+                                              int peers, int missing, int depth, long[] matches) {
+        String s = "Br:" + encodePeer(peerId, address) + "," + origin + "," + broadcastId + "," + peers + ","
+                + missing + "," + depth;
+        for (long word : matches) {
+            s += "," + Long.toHexString(word);
+        }
+        return s.getBytes();
+    }
+
+    public static boolean isBroadcastReply(byte[] request) {
+        return new String(request).trim().matches(broadcastReplyPattern);
+    }
+
+    /**
+     * The array returned is -
+     * [0] -> the peer that sent the reply
+     * [1] -> origin
+     * [2] -> broadcast ID
+     * [3] -> number of peers
+     * [4] -> number of parts missing
+     * [5] -> depth
+     * Use decodeBroadcastMatches for the rest
+     */
+    public static ArrayList<Integer> decodeBroadcastReply(byte[] request) {
+        String[] fields = new String(request).trim().substring(3).split(",");
         ArrayList<Integer> r = new ArrayList<Integer>();
-        while (m.find()) {
-            r.add(Integer.parseInt(m.group()));
+        for (int i = 0; i < 6; i++) {
+            r.add(decodePeerId(fields[i]));
         }
         return r;
     }
-}
\ No newline at end of file
+
+    public static long[] decodeBroadcastMatches(byte[] request) {
+        String[] fields = new String(request).trim().substring(3).split(",");
+        long[] matches = new long[fields.length - 6];
+        for (int i = 0; i < matches.length; i++) {
+            matches[i] = Long.parseUnsignedLong(fields[i + 6], 16);
+        }
+        return matches;
+    }
+
+    /**
+     * Carries one fragment of an erasure coded object towards the peer that should keep it
+     * It is routed towards the key until it reaches the owner, then passed along successors until it has gone
+     * as many peers past the owner as the fragment index
+     *
+     * @param peerId   the peer that stored the object, the acknowledgement is sent to it
+     * @param position number of peers past the owner the message has gone, -1 until it reaches the owner
+     * @param ttl      number of peers the message may still visit on the way to the owner
+     */
+    public static byte[] encodeFragmentStore(int peerId, InetSocketAddress address, int key, int requestId,
+                                             int position, int ttl, ErasureStore.Fragment fragment) {
+        return ("EP:" + encodePeer(peerId, address) + "," + key + "," + requestId + "," + position + "," + ttl
+                + encodeFragment(fragment)).getBytes();
+    }
+
+    public static boolean isFragmentStore(byte[] request) {
+        return new String(request).trim().matches(fragmentStorePattern);
+    }
+
+    /**
+     * The array returned is -
+     * [0] -> the peer that stored the object
+     * [1] -> key
+     * [2] -> request ID
+     * [3] -> position
+     * [4] -> ttl
+     * Use decodeFragment for the fragment
+     */
+    public static ArrayList<Integer> decodeFragmentStore(byte[] request) {
+        return decodeLeadingFields(request, 5);
+    }
+
+    /**
+     * Sent by the peer that kept a fragment to the peer that stored the object
+     */
+    public static byte[] encodeFragmentAck(int peerId, InetSocketAddress address, int key, int requestId,
+                                           int index) {
+        return ("Ep:" + encodePeer(peerId, address) + "," + key + "," + requestId + "," + index).getBytes();
+    }
+
+    public static boolean isFragmentAck(byte[] request) {
+        return new String(request).trim().matches(fragmentAckPattern);
+    }
+
+    /**
+     * The array returned is -
+     * [0] -> the peer that kept the fragment
+     * [1] -> key
+     * [2] -> request ID
+     * [3] -> fragment index
+     */
+    public static ArrayList<Integer> decodeFragmentAck(byte[] request) {
+        return decodeFields(request);
+    }
+
+    /**
+     * Asks the peers holding fragments of a key for them
+     * It is routed towards the key until it reaches the owner, then passed along successors. Every peer it
+     * visits from the owner on sends the fragments it holds straight to the requesting peer.
+     *
+     * @param position number of peers past the owner the message has gone, -1 until it reaches the owner
+     * @param steps    number of peers from the owner on that should be visited
+     * @param ttl      number of peers the message may still visit on the way to the owner
+     */
+    public static byte[] encodeFragmentFetch(int peerId, InetSocketAddress address, int key, int requestId,
+                                             int position, int steps, int ttl) {
+        return ("EG:" + encodePeer(peerId, address) + "," + key + "," + requestId + "," + position + "," + steps
+                + "," + ttl).getBytes();
+    }
+
+    public static boolean isFragmentFetch(byte[] request) {
+        return new String(request).trim().matches(fragmentFetchPattern);
+    }
+
+    /**
+     * The array returned is -
+     * [0] -> requesting peer
+     * [1] -> key
+     * [2] -> request ID
+     * [3] -> position
+     * [4] -> steps
+     * [5] -> ttl
+     */
+    public static ArrayList<Integer> decodeFragmentFetch(byte[] request) {
+        return decodeFields(request);
+    }
+
+    /**
+     * One fragment held by the sender, in answer to a fragment fetch
+     */
+    public static byte[] encodeFragmentReply(int peerId, InetSocketAddress address, int key, int requestId,
+                                             ErasureStore.Fragment fragment) {
+        return ("Eg:" + encodePeer(peerId, address) + "," + key + "," + requestId + encodeFragment(fragment))
+                .getBytes();
+    }
+
+    public static boolean isFragmentReply(byte[] request) {
+        return new String(request).trim().matches(fragmentReplyPattern);
+    }
+
+    /**
+     * The array returned is -
+     * [0] -> the peer that held the fragment
+     * [1] -> key
+     * [2] -> request ID
+     * Use decodeFragment for the fragment
+     */
+    public static ArrayList<Integer> decodeFragmentReply(byte[] request) {
+        return decodeLeadingFields(request, 3);
+    }
+
+    /**
+     * Returns the fragment carried by a fragment store or fragment reply
+     */
+    public static ErasureStore.Fragment decodeFragment(byte[] request) {
+        String[] fields = new String(request).trim().substring(3).split(",");
+        int first = (isFragmentStore(request)) ? 5 : 3;
+        String hex = fields[first + 5];
+        byte[] data = new byte[hex.length() / 2];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return new ErasureStore.Fragment(Long.parseLong(fields[first]), Integer.parseInt(fields[first + 1]),
+                Integer.parseInt(fields[first + 2]), Integer.parseInt(fields[first + 3]),
+                Integer.parseInt(fields[first + 4]), data);
+    }
+
+    /**
+     * Tells a successor that the peer before it has gone, so it rebuilds the objects that peer owned
+     */
+    public static byte[] encodeFragmentRepair(int peerId, InetSocketAddress address, int deadPeer) {
+        return ("ER:" + encodePeer(peerId, address) + "," + deadPeer).getBytes();
+    }
+
+    public static boolean isFragmentRepair(byte[] request) {
+        return new String(request).trim().matches(fragmentRepairPattern);
+    }
+
+    /**
+     * The array returned is -
+     * [0] -> the peer that noticed the death
+     * [1] -> the peer that has gone
+     */
+    public static ArrayList<Integer> decodeFragmentRepair(byte[] request) {
+        return decodeFields(request);
+    }
+
+    private static String encodeFragment(ErasureStore.Fragment fragment) {
+        StringBuilder s = new StringBuilder();
+        s.append(',').append(fragment.version).append(',').append(fragment.dataCount).append(',')
+                .append(fragment.parityCount).append(',').append(fragment.length).append(',')
+                .append(fragment.index).append(',');
+        for (byte b : fragment.data) {
+            s.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return s.toString();
+    }
+
+    /**
+     * Like decodeFields, but only the first count fields are decoded
+     */
+    private static ArrayList<Integer> decodeLeadingFields(byte[] data, int count) {
+        String[] fields = new String(data).trim().substring(3).split(",");
+        ArrayList<Integer> r = new ArrayList<Integer>();
+        for (int i = 0; i < count; i++) {
+            r.add(decodePeerId(fields[i]));
+        }
+        return r;
+    }
+
+    /**
+     * An object that simplifies data retrieval from a broadcast
+     */
+    public interface BroadcastData {
+        int getSender();
+
+        int getOrigin();
+
+        int getBroadcastId();
+
+        int getLimit();
+
+        int getBudget();
+
+        char getKind();
+
+        String getArgument();
+    }
+
+    private static class Broadcast implements BroadcastData {
+        int sender;
+        int origin;
+        int broadcastId;
+        int limit;
+        int budget;
+        char kind;
+        String argument;
+
+        public Broadcast(int sender, int origin, int broadcastId, int limit, int budget, char kind,
+                         String argument) {
+            this.sender = sender;
+            this.origin = origin;
+            this.broadcastId = broadcastId;
+            this.limit = limit;
+            this.budget = budget;
+            this.kind = kind;
+            this.argument = argument;
+        }
+
+        @Override
+        public int getSender() {
+            return sender;
+        }
+
+        @Override
+        public int getOrigin() {
+            return origin;
+        }
+
+        @Override
+        public int getBroadcastId() {
+            return broadcastId;
+        }
+
+        @Override
+        public int getLimit() {
+            return limit;
+        }
+
+        @Override
+        public int getBudget() {
+            return budget;
+        }
+
+        @Override
+        public char getKind() {
+            return kind;
+        }
+
+        @Override
+        public String getArgument() {
+            return argument;
+        }
+    }
+}
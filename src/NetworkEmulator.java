@@ -0,0 +1,372 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Makes the links between peers behave like a real network - slow, lossy and out of order
+ * Every message this peer sends, UDP or TCP, is passed through the emulator first. It can be dropped, delayed,
+ * duplicated or held back so that later messages overtake it, depending on the link it goes over.
+ * The behaviour of each link is read from the scenario file named by the system property cdht.scenario,
+ * there is no emulator when the property is not set.
+ * <p>
+ * A scenario file has one rule per line, # starts a comment -
+ * <pre>
+ * seed 42                         fixes the random numbers of every link, see below
+ * link FROM TO option=value ...   FROM and TO are peer IDs or *, the most specific matching rule is used
+ * partition START END A,B,.. C,.. nothing gets between the two groups from START to END (seconds)
+ * partition START END A,B,..      the group is cut off from every other peer
+ * </pre>
+ * Link options are -
+ * <pre>
+ * delay=ms        mean one way delay
+ * jitter=ms       spread of the delay, half width for uniform and standard deviation for normal
+ * dist=name       uniform (default), normal, exponential or pareto
+ * shape=n         pareto shape, smaller is a heavier tail (default 1.5)
+ * loss=p          chance a message is lost
+ * dup=p           chance a message is delivered twice
+ * reorder=p       chance a message is held back by an extra hold=ms (default 50) so later ones overtake it
+ * rto=ms          TCP retransmits instead of losing, each loss adds this much delay (default 200)
+ * proto=name      udp, tcp or all (default)
+ * start=s end=s   the rule only applies during this window
+ * </pre>
+ * Times are measured from when the peer started. Delays are carried out on the shared timer so they are
+ * rounded up to its 10ms tick.
+ * Each link, one receiver and protocol, draws from its own random numbers. With a seed the n-th message sent over a
+ * link meets the same fate in every run, whatever happens on the other links. Which message is n-th can still
+ * change from run to run, since messages are sent from several threads, so a seed does not make a whole run
+ * repeatable.
+ *
+ * @author Adiswhar Rishi
+ */
+public class NetworkEmulator {
+    public static final int UDP = 1;
+    public static final int TCP = 2;
+
+    private final int ID;
+    private ArrayList<Link> links;
+    private ArrayList<Partition> partitions;
+    //null if the scenario has no seed
+    private Long seed;
+    //random numbers for each link, by receiver and protocol
+    private ConcurrentHashMap<Long, Random> streams;
+    private HashedWheelTimer timer;
+    private long startTime;
+    private AtomicLong sent;
+    private AtomicLong dropped;
+    private AtomicLong duplicated;
+    private AtomicLong reordered;
+
+    private NetworkEmulator(int peerId) {
+        ID = peerId;
+        links = new ArrayList<Link>();
+        partitions = new ArrayList<Partition>();
+        streams = new ConcurrentHashMap<Long, Random>();
+        timer = HashedWheelTimer.shared();
+        startTime = System.nanoTime();
+        sent = new AtomicLong();
+        dropped = new AtomicLong();
+        duplicated = new AtomicLong();
+        reordered = new AtomicLong();
+    }
+
+    /**
+     * Loads the scenario named by the system property cdht.scenario
+     * Returns null if the property is not set
+     *
+     * @throws IllegalArgumentException if the scenario can not be read or has a mistake in it
+     */
+    public static NetworkEmulator fromSystemProperty(int peerId) {
+        String path = System.getProperty("cdht.scenario");
+        if (path == null) return null;
+        NetworkEmulator emulator = new NetworkEmulator(peerId);
+        int lineNumber = 0;
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader(path));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    lineNumber++;
+                    int comment = line.indexOf('#');
+                    if (comment != -1) line = line.substring(0, comment);
+                    line = line.trim();
+                    if (!line.isEmpty()) emulator.parse(line.split("\\s+"));
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Could not read scenario " + path + ": " + e.getMessage());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Scenario " + path + " line " + lineNumber + ": " + e.getMessage());
+        }
+        return emulator;
+    }
+
+    /**
+     * Sends a message over the emulated link to a peer
+     * The send is run straight away if the link has no delay, otherwise it is run on the timer thread so it
+     * must only hand the message over, not wait on the network
+     *
+     * @param receiverId the peer the message is for
+     * @param protocol   UDP or TCP
+     * @param send       does the actual sending, it may be run twice if the message is duplicated
+     */
+    public void send(int receiverId, int protocol, Runnable send) {
+        sent.incrementAndGet();
+        double now = elapsedSeconds();
+        if (partitioned(receiverId, now)) {
+            dropped.incrementAndGet();
+            return;
+        }
+        Link link = findLink(receiverId, protocol, now);
+        if (link == null) {
+            send.run();
+            return;
+        }
+        Random random = stream(receiverId, protocol);
+        long delay;
+        long duplicateDelay = -1;
+        //every number for one message is drawn together, so the messages on a link each get their own
+        synchronized (random) {
+            delay = link.sampleDelay(random);
+            if (random.nextDouble() < link.loss) {
+                if (protocol == UDP) {
+                    dropped.incrementAndGet();
+                    return;
+                }
+                //TCP does not lose messages, it just takes longer to get them through
+                delay += link.rto;
+                while (random.nextDouble() < link.loss) delay += link.rto;
+            }
+            if (random.nextDouble() < link.reorder) {
+                reordered.incrementAndGet();
+                delay += link.hold;
+            }
+            if (protocol == UDP && random.nextDouble() < link.dup) {
+                duplicated.incrementAndGet();
+                duplicateDelay = link.sampleDelay(random);
+            }
+        }
+        deliver(send, delay);
+        if (duplicateDelay != -1) deliver(send, duplicateDelay);
+    }
+
+    /**
+     * Returns the random numbers for the link to a peer, seeded from the scenario seed and the link if there is one
+     */
+    private Random stream(int receiverId, int protocol) {
+        long key = ((long) receiverId << 2) | protocol;
+        Random random = streams.get(key);
+        if (random != null) return random;
+        random = (seed == null) ? new Random() : new Random(seed * 31 + (((long) ID << 32) | key));
+        Random existing = streams.putIfAbsent(key, random);
+        return (existing != null) ? existing : random;
+    }
+
+    /**
+     * Counts of what the emulator has done to the messages sent so far, for printing
+     */
+    @Override
+    public String toString() {
+        return "Network emulator: " + sent.get() + " messages sent, " + dropped.get() + " dropped, "
+                + duplicated.get() + " duplicated, " + reordered.get() + " reordered.";
+    }
+
+    private void deliver(Runnable send, long delayMillis) {
+        if (delayMillis <= 0) {
+            send.run();
+        } else {
+            timer.schedule(send, delayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private double elapsedSeconds() {
+        return (System.nanoTime() - startTime) / 1e9;
+    }
+
+    private boolean partitioned(int receiverId, double now) {
+        for (Partition p : partitions) {
+            if (now < p.start || now >= p.end) continue;
+            boolean senderInA = p.a.contains(ID);
+            boolean receiverInA = p.a.contains(receiverId);
+            if (p.b == null) {
+                if (senderInA != receiverInA) return true;
+            } else if (senderInA && p.b.contains(receiverId) || receiverInA && p.b.contains(ID)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the most specific rule for the link, the later one if two are as specific, or null if none apply
+     */
+    private Link findLink(int receiverId, int protocol, double now) {
+        Link best = null;
+        int bestScore = -1;
+        for (Link l : links) {
+            if ((l.protocols & protocol) == 0 || now < l.start || now >= l.end) continue;
+            if (l.from != -1 && l.from != ID || l.to != -1 && l.to != receiverId) continue;
+            int score = ((l.from != -1) ? 2 : 0) + ((l.to != -1) ? 1 : 0);
+            if (score >= bestScore) {
+                best = l;
+                bestScore = score;
+            }
+        }
+        return best;
+    }
+
+    private void parse(String[] words) {
+        if (words[0].equals("seed") && words.length == 2) {
+            seed = Long.parseLong(words[1]);
+        } else if (words[0].equals("link") && words.length >= 3) {
+            Link l = new Link(parsePeer(words[1]), parsePeer(words[2]));
+            for (int i = 3; i < words.length; i++) {
+                int eq = words[i].indexOf('=');
+                if (eq == -1) throw new IllegalArgumentException("expected option=value, got '" + words[i] + "'");
+                l.set(words[i].substring(0, eq), words[i].substring(eq + 1));
+            }
+            links.add(l);
+        } else if (words[0].equals("partition") && (words.length == 4 || words.length == 5)) {
+            Partition p = new Partition();
+            p.start = Double.parseDouble(words[1]);
+            p.end = Double.parseDouble(words[2]);
+            p.a = parseGroup(words[3]);
+            if (words.length == 5) p.b = parseGroup(words[4]);
+            partitions.add(p);
+        } else {
+            throw new IllegalArgumentException("unknown rule '" + words[0] + "'");
+        }
+    }
+
+    private static int parsePeer(String word) {
+        return (word.equals("*")) ? -1 : Integer.parseInt(word);
+    }
+
+    private static HashSet<Integer> parseGroup(String word) {
+        HashSet<Integer> group = new HashSet<Integer>();
+        for (String id : word.split(",")) {
+            group.add(Integer.parseInt(id));
+        }
+        return group;
+    }
+
+    /**
+     * The behaviour of the links matched by one rule
+     */
+    private static class Link {
+        //-1 matches any peer
+        int from;
+        int to;
+        int protocols = UDP | TCP;
+        double start = 0;
+        double end = Double.MAX_VALUE;
+        double delay;
+        double jitter;
+        String dist = "uniform";
+        double shape = 1.5;
+        double loss;
+        double dup;
+        double reorder;
+        long hold = 50;
+        long rto = 200;
+
+        public Link(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        void set(String option, String value) {
+            switch (option) {
+                case "delay":
+                    delay = Double.parseDouble(value);
+                    break;
+                case "jitter":
+                    jitter = Double.parseDouble(value);
+                    break;
+                case "dist":
+                    if (!value.matches("uniform|normal|exponential|pareto")) {
+                        throw new IllegalArgumentException("unknown distribution '" + value + "'");
+                    }
+                    dist = value;
+                    break;
+                case "shape":
+                    shape = Double.parseDouble(value);
+                    break;
+                case "loss":
+                    loss = Double.parseDouble(value);
+                    break;
+                case "dup":
+                    dup = Double.parseDouble(value);
+                    break;
+                case "reorder":
+                    reorder = Double.parseDouble(value);
+                    break;
+                case "hold":
+                    hold = Long.parseLong(value);
+                    break;
+                case "rto":
+                    rto = Long.parseLong(value);
+                    break;
+                case "proto":
+                    if (value.equals("udp")) {
+                        protocols = UDP;
+                    } else if (value.equals("tcp")) {
+                        protocols = TCP;
+                    } else if (value.equals("all")) {
+                        protocols = UDP | TCP;
+                    } else {
+                        throw new IllegalArgumentException("unknown protocol '" + value + "'");
+                    }
+                    break;
+                case "start":
+                    start = Double.parseDouble(value);
+                    break;
+                case "end":
+                    end = Double.parseDouble(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown option '" + option + "'");
+            }
+        }
+
+        /**
+         * Returns a one way delay in milliseconds drawn from the distribution of this link
+         */
+        long sampleDelay(Random random) {
+            double d;
+            switch (dist) {
+                case "normal":
+                    d = delay + random.nextGaussian() * jitter;
+                    break;
+                case "exponential":
+                    d = -delay * Math.log(1 - random.nextDouble());
+                    break;
+                case "pareto":
+                    //delay is the smallest value the distribution gives
+                    d = delay / Math.pow(1 - random.nextDouble(), 1 / shape);
+                    break;
+                default:
+                    d = delay + (2 * random.nextDouble() - 1) * jitter;
+            }
+            return Math.max(0, Math.round(d));
+        }
+    }
+
+    /**
+     * Two groups of peers that can not reach each other for a while
+     */
+    private static class Partition {
+        double start;
+        double end;
+        HashSet<Integer> a;
+        //null means every peer not in a
+        HashSet<Integer> b;
+    }
+}
@@ -0,0 +1,67 @@
+import java.net.InetSocketAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Keeps track of the address every known peer can be reached at
+ * Addresses are learnt from the messages peers send, a peer that has not been heard of yet is assumed to be
+ * at localhost on port 50000 + ID
+ *
+ * @author Adiswhar Rishi
+ */
+public class PeerAddressTable {
+    //peers in the ring are looked up by index, every ping does a lookup and this way the ID is not boxed
+    private AtomicReferenceArray<InetSocketAddress> ringAddresses;
+    //anything else that has an ID, such as a load generator
+    private ConcurrentHashMap<Integer, InetSocketAddress> otherAddresses;
+
+    public PeerAddressTable() {
+        ringAddresses = new AtomicReferenceArray<InetSocketAddress>(256);
+        otherAddresses = new ConcurrentHashMap<Integer, InetSocketAddress>();
+    }
+
+    /**
+     * Returns the address of the given peer, never null
+     */
+    public InetSocketAddress get(int peerId) {
+        InetSocketAddress address = lookup(peerId);
+        if (address == null) {
+            if (inRing(peerId)) {
+                ringAddresses.compareAndSet(peerId, null, defaultAddress(peerId));
+                address = ringAddresses.get(peerId);
+            } else {
+                address = defaultAddress(peerId);
+                InetSocketAddress existing = otherAddresses.putIfAbsent(peerId, address);
+                if (existing != null) address = existing;
+            }
+        }
+        return address;
+    }
+
+    /**
+     * Records the address of a peer, replacing whatever was known before
+     */
+    public void put(int peerId, InetSocketAddress address) {
+        if (address == null || address.equals(lookup(peerId))) return;
+        if (inRing(peerId)) {
+            ringAddresses.set(peerId, address);
+        } else {
+            otherAddresses.put(peerId, address);
+        }
+    }
+
+    private InetSocketAddress lookup(int peerId) {
+        return (inRing(peerId)) ? ringAddresses.get(peerId) : otherAddresses.get(peerId);
+    }
+
+    private static boolean inRing(int peerId) {
+        return peerId >= 0 && peerId < 256;
+    }
+
+    /**
+     * Returns the address a peer would be at if nothing else is known about it
+     */
+    public static InetSocketAddress defaultAddress(int peerId) {
+        return new InetSocketAddress("localhost", cdht_ex.PORT_BASE + peerId);
+    }
+}
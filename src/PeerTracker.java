@@ -1,13 +1,28 @@
 import java.net.InetSocketAddress;
 import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
 
-public class PeerTracker extends TimerTask {
+public class PeerTracker implements Runnable {
     private ArrayList<Peer> successors;
+    //the successors pinged in the latest round, read without the lock when a ping response arrives
+    private volatile Peer[] pinged;
     private final int MAX_FAILS = 4;
+    //ping rounds are spread out by up to this fraction of the period so peers do not ping in lock step
+    private final double PING_JITTER = 0.1;
     private cdht_ex employer;
-    //these are a list of ping Sequence numbers that are yet to be acknowledged
-    private LinkedList<Integer> pastPingRequests;
+    private long pingPeriod;
+    private boolean running;
+    private HashedWheelTimer.Timeout nextRound;
+    //the peers that sent us the most recent ping requests, oldest first
+    private PingHistory pastPingRequests;
     private ArrayList<Integer> deathList;
+    //the successors given on the command line, fallen back on if every restored successor dies
+    private ArrayList<Integer> givenSuccessors;
+    //timed from the loss of a successor until two are known again, null when nothing is being repaired
+    private FlightEvents.SuccessorRepair repair;
+    private RoutingSnapshot snapshot;
 
 
     public PeerTracker(cdht_ex employer, int successor1_ID, int successor2_ID) {
@@ -15,26 +30,131 @@ public class PeerTracker extends TimerTask {
         successors = new ArrayList<Peer>();
         successors.add(new Peer(successor1_ID));
         successors.add(new Peer(successor2_ID));
-        pastPingRequests = new LinkedList<Integer>();
+        pinged = new Peer[0];
+        givenSuccessors = new ArrayList<Integer>(Arrays.asList(successor1_ID, successor2_ID));
+        pastPingRequests = new PingHistory(11);
         deathList = new ArrayList<Integer>();
+        snapshot = new RoutingSnapshot(employer.ID, employer.addressTable, employer.writeAheadLog);
     }
 
+    /**
+     * Replaces the starting routing state with the one saved by a previous run of this peer, if there is one
+     * State is only kept when cdht.stateDir is set. The successors given on the command line fill any gaps and are
+     * tried again if every restored successor dies.
+     *
+     * @return true if a snapshot was restored
+     */
+    public synchronized boolean restoreSnapshot() {
+        RoutingSnapshot.State state = snapshot.load();
+        if (state == null || state.successors.isEmpty()) return false;
+        ArrayList<Peer> given = successors;
+        successors = new ArrayList<Peer>();
+        for (int i = 0; i < state.successors.size(); i++) {
+            if (addToSuccessors(state.successors.get(i)) && i < state.seqNums.size()) {
+                successors.get(successors.size() - 1).seqNum = (byte) (int) state.seqNums.get(i);
+            }
+        }
+        for (Peer p : given) {
+            if (successors.size() >= 2) break;
+            addToSuccessors(p.ID);
+        }
+        //the snapshot lists the most recent predecessor first
+        for (int i = state.predecessors.size() - 1; i >= 0; i--) {
+            pastPingRequests.add(state.predecessors.get(i));
+        }
+        employer.fingers.restore(state.fingers);
+        System.out.println("Restored routing state, successors " + successors + ", predecessors " + state.predecessors + ".");
+        return true;
+    }
+
+    /**
+     * Checks a restored routing state without holding anything up
+     * Our first successor is asked for its successors, the response will correct our second successor if needed.
+     * Dead successors will be found by the usual ping rounds.
+     */
+    public void validateSnapshot() {
+        askForSuccessors(getSuccessorId(1));
+    }
+
+    /**
+     * Writes the current routing state to the write-ahead log
+     * Called whenever the successors or predecessors change and when the peer shuts down
+     */
+    public synchronized void saveSnapshot() {
+        ArrayList<Integer> seqNums = new ArrayList<Integer>();
+        for (Peer p : new ArrayList<Peer>(successors)) {
+            seqNums.add((int) p.seqNum);
+        }
+        ArrayList<Integer> predecessors = getPredecessors();
+        snapshot.save(getSuccessors(), seqNums, (predecessors == null) ? new ArrayList<Integer>() : predecessors,
+                employer.fingers.getFingers());
+    }
+
+    /**
+     * Starts the ping rounds, the first one is sent straight away
+     *
+     * @param periodMillis the average time between ping rounds, also how long a ping has to be answered
+     */
+    public synchronized void start(long periodMillis) {
+        pingPeriod = periodMillis;
+        running = true;
+        nextRound = employer.getTimer().schedule(this, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops any further ping rounds
+     */
+    public synchronized void stop() {
+        running = false;
+        if (nextRound != null) nextRound.cancel();
+    }
+
+    /**
+     * Sends a ping round to every successor and schedules the next round
+     */
     @Override
-    public void run() {
-        analyseFailedPings();
-        for (Peer s : successors) {
-            employer.getUdpServer().sendDatagram(MessageFormatter.encodePingRequest(s.seqNum),
-                    new InetSocketAddress("localhost", s.getUdpPort()));
-            s.unackedPings.add(s.seqNum);
+    public synchronized void run() {
+        if (!running) return;
+        //published before the pings go out, a response can arrive before this round has finished
+        pinged = successors.toArray(new Peer[successors.size()]);
+        for (int i = 0; i < successors.size(); i++) {
+            Peer s = successors.get(i);
+            s.collectAcks();
+            s.sentAt[s.seqNum] = System.nanoTime();
+            employer.getUdpServer().sendPing(s.seqNum, s.ID);
+            FlightEvents.pingSent(employer.ID, s.ID, s.seqNum);
+            if (s.unackedPings < 128) s.unackedPings++;
+            employer.getTimer().schedule(new PingExpiry(s.ID, s.seqNum), pingPeriod, TimeUnit.MILLISECONDS);
             s.incSeqNum();
         }
+        long jitter = (long) (pingPeriod * PING_JITTER * (2 * ThreadLocalRandom.current().nextDouble() - 1));
+        nextRound = employer.getTimer().schedule(this, pingPeriod + jitter, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Called when a ping has had its full period to be answered
+     * If it is still unanswered it counts as a failure, enough failures in a row and the successor is dead
+     */
+    private void expirePing(int peerId, byte seqNumber) {
+        int ask;
+        synchronized (this) {
+            for (Peer s : successors) {
+                if (s.ID != peerId) continue;
+                s.collectAcks();
+                if (s.isUnacked(seqNumber)) s.failedPings++;
+            }
+            ask = analyseFailedPings();
+        }
+        askForSuccessors(ask);
     }
 
     /**
      * This method does the necessary actions if a ping fails
      * Also detects successor death
+     *
+     * @return the successor to ask for new successors once the lock is released, -1 if there is none
      */
-    private void analyseFailedPings() {
+    private int analyseFailedPings() {
         ArrayList<Integer> deadPeers = new ArrayList<Integer>(2);
         //the deadPeers array was created to stop concurrent modification exceptions
         for (Peer s : successors) {
@@ -43,51 +163,87 @@ public class PeerTracker extends TimerTask {
                 deathList.add(s.ID);
             }
         }
+        int ask = -1;
         for (int s : deadPeers) {
-            handleSuccessorDeath(s);
+            ask = handleSuccessorDeath(s, "pings");
         }
+        return ask;
     }
 
     /**
      * Called automatically, no need to access this method
+     * The successor request is not sent here, so that nothing is sent while holding the lock
      *
      * @param successorId One of the two ID's from the outer class
+     * @param cause       how the death was found, for the flight recorder
+     * @return the successor to ask for its successors, -1 if there is none left
      */
-    private void handleSuccessorDeath(int successorId) {
+    private int handleSuccessorDeath(int successorId, String cause) {
         System.out.println("Peer " + successorId + " is no longer alive.");
+        boolean first = !successors.isEmpty() && successors.get(0).ID == successorId;
+        recordLoss(successorId, cause);
         removeFromSuccessors(successorId);
+        if (first) employer.erasureStore.handleSuccessorLoss(successorId);
         removeFromPastPings(successorId);
+        if (successors.isEmpty()) {
+            //a restored successor list can be out of date, the command line ones may still be alive
+            for (int s : givenSuccessors) {
+                if (s != successorId && !deathList.contains(s)) addToSuccessors(s);
+            }
+            if (!successors.isEmpty()) {
+                System.out.println("Falling back on the successors I was started with, " + successors + ".");
+            }
+        }
+        saveSnapshot();
         //now we ask our remaining successor for its next two successors
-        byte[] request = MessageFormatter.encodeSuccessorRequest(employer.ID);
-        InetSocketAddress address = new InetSocketAddress("localhost", successors.get(0).getTcpPort());
-        employer.getTcpServer().send(request, address);
+        return (successors.isEmpty()) ? -1 : successors.get(0).ID;
+    }
+
+    /**
+     * Asks a successor for its successors, called without holding the lock
+     *
+     * @param successorId does nothing if this is -1
+     */
+    private void askForSuccessors(int successorId) {
+        if (successorId == -1) return;
+        byte[] request = MessageFormatter.encodeSuccessorRequest(employer.ID, employer.getAddress());
+        employer.getTcpServer().send(request, successorId);
     }
 
     /**
      * Method should be called if a death is detected externally
+     * A dead successor is replaced the same way as one found by the pings
      */
     public void registerDeathDetection(int peerId) {
-        removeFromPastPings(peerId);
-        removeFromSuccessors(peerId);
+        int ask = -1;
+        synchronized (this) {
+            removeFromPastPings(peerId);
+            for (int i = 0; i < successors.size(); i++) {
+                if (successors.get(i).ID == peerId) {
+                    deathList.add(peerId);
+                    ask = handleSuccessorDeath(peerId, "refused");
+                    break;
+                }
+            }
+        }
+        askForSuccessors(ask);
     }
 
     /**
      * This method should be called everytime a ping response is received.
      * This method is used to keep track of which peer is alive
+     * Only the time of the response is noted here, without the lock, the timer thread takes it into account
+     * before its next ping round or expiry for that successor.
      *
      * @param peerId    the peer id
      * @param seqNumber the sequence number in the message
      */
     public void registerPingResponse(int peerId, byte seqNumber) {
-        for (Peer s : successors) {
-            if (s.ID == peerId) {
-                if (!s.unackedPings.contains(seqNumber)) {
-                    System.err.println("Sequence number " + seqNumber + " does not exist for peer " + peerId);
-                    System.out.println(s.unackedPings);
-                } else {
-                    s.unackedPings.subList(0, s.unackedPings.indexOf(seqNumber) + 1).clear();
-                }
-            }
+        //called for every ping response, so this must not allocate
+        if (seqNumber < 0) return;
+        Peer[] peers = pinged;
+        for (int i = 0; i < peers.length; i++) {
+            if (peers[i].ID == peerId) peers[i].ackedAt.set(seqNumber, System.nanoTime());
         }
     }
 
@@ -97,11 +253,10 @@ public class PeerTracker extends TimerTask {
      *
      * @param peerId peer that sent the request
      */
-    public void registerPingRequest(int peerId) {
-        if (pastPingRequests.size() > 10) {
-            pastPingRequests.removeFirst();
-        }
+    public synchronized void registerPingRequest(int peerId) {
+        boolean newPredecessor = !pastPingRequests.contains(peerId);
         pastPingRequests.add(peerId);
+        if (newPredecessor) saveSnapshot();
     }
 
     /**
@@ -111,18 +266,23 @@ public class PeerTracker extends TimerTask {
      * @param peerId    the peer that departed
      * @param givenSucc the successor information given by said peer
      */
-    public void registerGracefulDepart(int peerId, List<Integer> givenSucc) {
+    public synchronized void registerGracefulDepart(int peerId, List<Integer> givenSucc) {
         System.out.println("Peer " + peerId + " will depart from the network.");
         //the below code cleans out the left peer from past requests
         //this is useful when a successor is also a predecessor
         removeFromPastPings(peerId);
+        boolean first = !successors.isEmpty() && successors.get(0).ID == peerId;
+        recordLoss(peerId, "departed");
         removeFromSuccessors(peerId);
+        if (first) employer.erasureStore.handleSuccessorLoss(peerId);
         //now we add the lower of the two successors to our own
         for (int s : givenSucc) {
             if (addToSuccessors(s)) break;
         }
+        recordRepair();
         System.out.println("My first successor is now " + ((successors.size() > 0) ? "peer " + successors.get(0) : "Nothing")+".");
         System.out.println("My second successor is now " + ((successors.size() > 1) ? "peer " + successors.get(1) : "Nothing")+".");
+        saveSnapshot();
     }
 
     /**
@@ -132,7 +292,15 @@ public class PeerTracker extends TimerTask {
      * @param peerId    the responding peer
      * @param givenSucc the successor information given by said peer
      */
-    public void registerSuccessorResponse(int peerId, List<Integer> givenSucc) {
+    public synchronized void registerSuccessorResponse(int peerId, List<Integer> givenSucc) {
+        if (successors.size() >= 2) {
+            //nothing has died, this is the answer to validateSnapshot
+            if (successors.get(0).ID != peerId || givenSucc.isEmpty() || givenSucc.get(0) == employer.ID
+                    || successors.get(1).ID == givenSucc.get(0)) return;
+            System.out.println("Restored successor " + successors.get(1).ID + " is out of date.");
+            successors.remove(1);
+            givenSucc = givenSucc.subList(0, 1);
+        }
         for (int s : givenSucc) {
             if (deathList.contains(s)) {
                 deathList.remove((Integer) s);
@@ -140,24 +308,70 @@ public class PeerTracker extends TimerTask {
                 if (addToSuccessors(s)) break;
             }
         }
+        recordRepair();
         System.out.println("My first successor is now " + ((successors.size() > 0) ? "peer " + successors.get(0) : "Nothing")+".");
         System.out.println("My second successor is now " + ((successors.size() > 1) ? "peer " + successors.get(1) : "Nothing")+".");
+        saveSnapshot();
     }
 
-    private void removeFromPastPings(int peerId) {
-        Iterator it = pastPingRequests.iterator();
-        while (it.hasNext()) {
-            int i = (Integer) it.next();
-            if (i == peerId) it.remove();
+    /**
+     * Records the loss of a successor and starts timing its repair, nothing is done for a peer that is not one
+     */
+    private void recordLoss(int peerId, String cause) {
+        int position = -1;
+        for (int i = 0; i < successors.size(); i++) {
+            if (successors.get(i).ID == peerId) position = i + 1;
+        }
+        if (position == -1) return;
+        FlightEvents.PeerLoss loss = FlightEvents.startPeerLoss();
+        if (loss != null && loss.shouldCommit()) {
+            loss.peerId = employer.ID;
+            loss.lostPeerId = peerId;
+            loss.cause = cause;
+            loss.position = position;
+            loss.commit();
+        }
+        //a repair that is still going on is timed from the first loss
+        if (repair != null) return;
+        repair = FlightEvents.startRepair();
+        if (repair == null) return;
+        repair.lostPeerId = peerId;
+        repair.cause = cause;
+    }
+
+    /**
+     * Ends the repair event once two successors are known again
+     */
+    private void recordRepair() {
+        if (repair == null || successors.size() < 2) return;
+        repair.end();
+        if (repair.shouldCommit()) {
+            repair.peerId = employer.ID;
+            repair.firstSuccessor = successors.get(0).ID;
+            repair.secondSuccessor = successors.get(1).ID;
+            repair.commit();
         }
+        repair = null;
+    }
+
+    private void removeFromPastPings(int peerId) {
+        pastPingRequests.remove(peerId);
     }
 
-    private void removeFromSuccessors(int peerId) {
+    /**
+     * Returns true if the peer was one of our successors
+     */
+    private boolean removeFromSuccessors(int peerId) {
+        boolean removed = false;
         Iterator it = successors.iterator();
         while (it.hasNext()) {
             Peer p = (Peer) it.next();
-            if (p.ID == peerId) it.remove();
+            if (p.ID == peerId) {
+                it.remove();
+                removed = true;
+            }
         }
+        return removed;
     }
 
     /**
@@ -180,7 +394,7 @@ public class PeerTracker extends TimerTask {
         return !contains;
     }
 
-    public ArrayList<Integer> getSuccessors() {
+    public synchronized ArrayList<Integer> getSuccessors() {
         ArrayList<Integer> r = new ArrayList<Integer>();
         for (Peer p : successors) {
             r.add(p.ID);
@@ -193,7 +407,7 @@ public class PeerTracker extends TimerTask {
      *
      * @param successorNumber [1,2]
      */
-    public int getSuccessorId(int successorNumber) {
+    public synchronized int getSuccessorId(int successorNumber) {
         return ((successors.size() >= successorNumber) ? successors.get(successorNumber - 1).ID : -1);
     }
 
@@ -201,7 +415,7 @@ public class PeerTracker extends TimerTask {
      * Returns the predecessors of the employer
      * if the predecessors are known to be dead, they are not returned
      */
-    public ArrayList<Integer> getPredecessors() {
+    public synchronized ArrayList<Integer> getPredecessors() {
         int i = pastPingRequests.size() - 1;
         if (i == -1) return null; //all relevant peers have departed the network
         ArrayList<Integer> r = new ArrayList<Integer>();
@@ -215,15 +429,106 @@ public class PeerTracker extends TimerTask {
         return r;
     }
 
+    /**
+     * A fixed number of peer IDs kept in the order they were added, the oldest is dropped to make room
+     * Kept in an int array so recording a ping request does not create any garbage
+     */
+    private static class PingHistory {
+        private int[] ids;
+        private int start;
+        private int size;
+
+        public PingHistory(int capacity) {
+            ids = new int[capacity];
+        }
+
+        void add(int id) {
+            if (size == ids.length) {
+                start = (start + 1) % ids.length;
+                size--;
+            }
+            ids[(start + size++) % ids.length] = id;
+        }
+
+        /**
+         * @param i 0 is the oldest
+         */
+        int get(int i) {
+            return ids[(start + i) % ids.length];
+        }
+
+        int size() {
+            return size;
+        }
+
+        boolean contains(int id) {
+            for (int i = 0; i < size; i++) {
+                if (get(i) == id) return true;
+            }
+            return false;
+        }
+
+        void remove(int id) {
+            int kept = 0;
+            for (int i = 0; i < size; i++) {
+                int value = get(i);
+                if (value != id) ids[(start + kept++) % ids.length] = value;
+            }
+            size = kept;
+        }
+    }
+
+    private class PingExpiry implements Runnable {
+        private int peerId;
+        private byte seqNumber;
+
+        public PingExpiry(int peerId, byte seqNumber) {
+            this.peerId = peerId;
+            this.seqNumber = seqNumber;
+        }
+
+        @Override
+        public void run() {
+            expirePing(peerId, seqNumber);
+        }
+    }
+
     private class Peer implements Comparable<Peer> {
         public int ID;
-        public ArrayList<Byte> unackedPings;
+        //the last unackedPings sequence numbers sent have not been answered, they are always the newest ones
+        public int unackedPings;
+        //number of pings in a row that expired without a response
+        public int failedPings;
         private byte seqNum;
+        //when each sequence number was last sent (System.nanoTime)
+        private long[] sentAt;
+        //when each sequence number was last answered, written by the ping server without the lock (System.nanoTime)
+        private AtomicLongArray ackedAt;
 
         public Peer(int ID) {
             this.ID = ID;
-            unackedPings = new ArrayList<Byte>();
             seqNum = 0;
+            sentAt = new long[128];
+            ackedAt = new AtomicLongArray(128);
+        }
+
+        /**
+         * Takes in the responses that have arrived since this was last called, must hold the PeerTracker lock
+         * The newest ping that has been answered also answers every one sent before it
+         */
+        void collectAcks() {
+            for (int i = 0; i < unackedPings; i++) {
+                int seq = ((seqNum - 1 - i) % 128 + 128) % 128;
+                long acked = ackedAt.get(seq);
+                //a response from before the sequence number was last sent belongs to an older ping
+                if (acked == 0 || acked - sentAt[seq] < 0) continue;
+                unackedPings = i;
+                long rtt = acked - sentAt[seq];
+                employer.rtts.sample(ID, rtt);
+                FlightEvents.pingAck(employer.ID, ID, (byte) seq, rtt);
+                failedPings = 0;
+                return;
+            }
         }
 
         public void incSeqNum() {
@@ -231,16 +536,23 @@ public class PeerTracker extends TimerTask {
             if (seqNum == -128) seqNum = 0;
         }
 
-        public int getUdpPort() {
-            return cdht_ex.PORT_BASE + ID;
+        /**
+         * Number of pings sent after the given one
+         */
+        int distanceFromNewest(byte seqNumber) {
+            return ((seqNum - 1 - seqNumber) % 128 + 128) % 128;
+        }
+
+        boolean isUnacked(byte seqNumber) {
+            return seqNumber >= 0 && distanceFromNewest(seqNumber) < unackedPings;
         }
 
-        public int getTcpPort() {
-            return cdht_ex.PORT_BASE + ID;
+        public InetSocketAddress getAddress() {
+            return employer.addressTable.get(ID);
         }
 
         public boolean isDead() {
-            return unackedPings.size() >= MAX_FAILS;
+            return failedPings >= MAX_FAILS;
         }
 
         @Override
@@ -2,12 +2,14 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.DatagramChannel;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
 
 /**
- * The ping server listens for UDP data on port 50000 + boundPeer.getUdpPort()
+ * The ping server listens for UDP data on boundPeer.getAddress()
+ * Datagrams that are not pings belong to the UDP transport and are passed on to it
+ * Pings are handled on their own high priority lane so failure detection is never stuck behind data traffic
  *
  * @author Adiswhar Rishi
  */
@@ -15,7 +17,14 @@ public class PingServer implements Runnable {
     private DatagramChannel udpserver;
     private boolean state;
     private cdht_ex boundPeer;
-    private ExecutorService threadManager;
+    private ThreadPoolExecutor threadManager;
+    //the ping fast path runs on the I/O thread and reuses these instead of allocating for every ping
+    private ByteBuffer pingResponse;
+    private ByteBuffer pingRequest;
+    private String[] requestLines;
+    private String[] responseLines;
+    //one send buffer per thread for every other datagram
+    private ThreadLocal<ByteBuffer> sendBuffers;
 
     /**
      * the boundPeer given is the peer that this server will be attached to
@@ -23,7 +32,19 @@ public class PingServer implements Runnable {
     public PingServer(cdht_ex boundPeer) {
         state = true;
         this.boundPeer = boundPeer;
-        threadManager = Executors.newFixedThreadPool(3);
+        //a queued ping that has been waiting long is of no use, so the oldest are dropped first
+        threadManager = WorkQueues.bounded("Ping Worker", 3, 256, Thread.MAX_PRIORITY,
+                new WorkQueues.ShedOldest("ping"));
+        pingResponse = ByteBuffer.allocateDirect(MessageFormatter.MAX_PING_SIZE);
+        pingRequest = ByteBuffer.allocateDirect(MessageFormatter.MAX_PING_SIZE);
+        requestLines = new String[256];
+        responseLines = new String[256];
+        sendBuffers = new ThreadLocal<ByteBuffer>() {
+            @Override
+            protected ByteBuffer initialValue() {
+                return ByteBuffer.allocateDirect(MessageFormatter.MAX_UDP_SIZE);
+            }
+        };
         try {
             udpserver = DatagramChannel.open();
         } catch (IOException e) {
@@ -34,25 +55,23 @@ public class PingServer implements Runnable {
 
     @Override
     /**
-     * Runs the server in non-blocking mode and creates worker threads to handle requests
+     * Runs the server in non-blocking mode
+     * Pings are handled straight away on this thread, anything else is handed to a worker thread
      */
     public void run() {
-        ByteBuffer storeBuffer = ByteBuffer.allocate(MessageFormatter.MAX_PING_SIZE);
+        ByteBuffer storeBuffer = ByteBuffer.allocateDirect(MessageFormatter.MAX_UDP_SIZE);
         try {
             while (state) {
                 InetSocketAddress senderAddress = (InetSocketAddress) udpserver.receive(storeBuffer);
                 if (senderAddress == null) continue;
                 storeBuffer.flip(); //get buffer ready for read
                 //now do something with the data received
-                byte[] request = new byte[MessageFormatter.MAX_PING_SIZE];
-
-                int i = 0;
-                while (storeBuffer.hasRemaining()) {
-                    request[i++] = storeBuffer.get();
+                if (!handlePing(storeBuffer, senderAddress)) {
+                    byte[] request = new byte[storeBuffer.remaining()];
+                    storeBuffer.get(request);
+                    threadManager.execute(new PingWorker(request, senderAddress));
                 }
 
-                threadManager.execute(new PingWorker(request, senderAddress));
-
                 storeBuffer.clear();
             }
             udpserver.close();
@@ -62,12 +81,69 @@ public class PingServer implements Runnable {
         }
     }
 
+    /**
+     * The ping fast path, a ping request or response is dealt with without creating any objects
+     * With the network emulator only the response to a request is passed through it, as a copy of its own
+     *
+     * @return false if the datagram was not handled
+     */
+    private boolean handlePing(ByteBuffer datagram, InetSocketAddress senderAddress) throws IOException {
+        if (datagram.remaining() != MessageFormatter.MAX_PING_SIZE) return false;
+        byte seqNumber = datagram.get(0);
+        byte type = datagram.get(1);
+        int peerId = datagram.get(2) & 0xFF;
+        if (type == 'r') {
+            boundPeer.addressTable.put(peerId, senderAddress);
+            boundPeer.peerTracker.registerPingResponse(peerId, seqNumber);
+            if (responseLines[peerId] == null) {
+                responseLines[peerId] = "A ping response message was received from Peer " + peerId + ".";
+            }
+            System.out.println(responseLines[peerId]);
+        } else if (type == 'R') {
+            boundPeer.addressTable.put(peerId, senderAddress);
+            boundPeer.peerTracker.registerPingRequest(peerId);
+            if (requestLines[peerId] == null) {
+                requestLines[peerId] = "A ping request message was received from Peer " + peerId + ".";
+            }
+            System.out.println(requestLines[peerId]);
+            if (boundPeer.getEmulator() != null) {
+                //the emulator can hold the response back, so it can not use the shared buffer
+                sendDatagram(MessageFormatter.encodePingResponse(seqNumber, boundPeer.ID), senderAddress, peerId);
+                return true;
+            }
+            pingResponse.clear();
+            pingResponse.put(seqNumber).put((byte) 'r').put((byte) boundPeer.ID).flip();
+            udpserver.send(pingResponse, senderAddress);
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Sends a ping request to a peer without creating any objects
+     * Only called by the ping rounds, which never run at the same time
+     */
+    public void sendPing(byte seqNumber, int receiverId) {
+        if (boundPeer.getEmulator() != null) {
+            sendDatagram(MessageFormatter.encodePingRequest(seqNumber, boundPeer.ID), receiverId);
+            return;
+        }
+        pingRequest.clear();
+        pingRequest.put(seqNumber).put((byte) 'R').put((byte) boundPeer.ID).flip();
+        try {
+            udpserver.send(pingRequest, boundPeer.addressTable.get(receiverId));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
     /**
      * Binds the server to the port provided by boundPeer
      */
     private void bindServer() {
         try {
-            udpserver.bind(new InetSocketAddress("localhost", boundPeer.getUdpPort()));
+            udpserver.bind(boundPeer.getAddress());
             //we will configure blocking to false
             udpserver.configureBlocking(false);
         } catch (IOException e) {
@@ -102,15 +178,19 @@ public class PingServer implements Runnable {
         public void run() {
             ByteBuffer response = null;
             if (MessageFormatter.isPingResponse(request)) {
-                MessageFormatter.PingData pingData = MessageFormatter.decodePing(request, senderAddress);
+                MessageFormatter.PingData pingData = MessageFormatter.decodePing(request);
+                boundPeer.addressTable.put(pingData.getPeerId(), senderAddress);
                 boundPeer.peerTracker.registerPingResponse(pingData.getPeerId(), pingData.getSequenceNumber());
                 System.out.println("A ping response message was received from Peer " + pingData.getPeerId()+".");
             } else if (MessageFormatter.isPingRequest(request)) {
-                MessageFormatter.PingData pingData = MessageFormatter.decodePing(request, senderAddress);
+                MessageFormatter.PingData pingData = MessageFormatter.decodePing(request);
+                boundPeer.addressTable.put(pingData.getPeerId(), senderAddress);
                 boundPeer.peerTracker.registerPingRequest(pingData.getPeerId());
                 System.out.println("A ping request message was received from Peer " + pingData.getPeerId()+".");
-                byte[] resp = MessageFormatter.encodePingResponse(request);
-                response = (ByteBuffer) (ByteBuffer.allocate(resp.length)).put(resp).flip();
+                sendDatagram(MessageFormatter.encodePingResponse(request, boundPeer.ID), senderAddress,
+                        pingData.getPeerId());
+            } else if (MessageFormatter.isUdpFrame(request) || MessageFormatter.isUdpAck(request)) {
+                boundPeer.getUdpTransport().handleDatagram(request, senderAddress);
             } else {
                 System.out.println("Unknown Ping type, will act as an echo server");
                 response = (ByteBuffer) (ByteBuffer.allocate(request.length)).put(request).flip();
@@ -129,13 +209,39 @@ public class PingServer implements Runnable {
 
     /**
      * Sends a datagram from the bound port.
+     * The address of the peer is taken from the address table of boundPeer
      *
-     * @param data            any byte data
-     * @param receiverAddress the address to send to
+     * @param data       any byte data
+     * @param receiverId the peer to send to
+     */
+    public void sendDatagram(byte[] data, int receiverId) {
+        sendDatagram(data, boundPeer.addressTable.get(receiverId), receiverId);
+    }
+
+    /**
+     * Sends a datagram from the bound port, through the network emulator if there is one
      */
-    public void sendDatagram(byte[] data, SocketAddress receiverAddress) {
+    private void sendDatagram(final byte[] data, final SocketAddress receiverAddress, int receiverId) {
+        if (boundPeer.getEmulator() == null) {
+            transmit(data, receiverAddress);
+            return;
+        }
+        boundPeer.getEmulator().send(receiverId, NetworkEmulator.UDP, new Runnable() {
+            @Override
+            public void run() {
+                transmit(data, receiverAddress);
+            }
+        });
+    }
+
+    private void transmit(byte[] data, SocketAddress receiverAddress) {
+        ByteBuffer buffer = sendBuffers.get();
+        buffer.clear();
+        buffer.put(data).flip();
         try {
-            udpserver.send((ByteBuffer) (ByteBuffer.allocate(data.length)).put(data).flip(), receiverAddress);
+            udpserver.send(buffer, receiverAddress);
+        } catch (ClosedChannelException ignored) {
+            //the server was closed while the datagram was held back by the emulator
         } catch (IOException e) {
             e.printStackTrace();
         }
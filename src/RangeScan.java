@@ -0,0 +1,263 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Handles range scans over key IDs, both for scans this peer started and for scans passing through it
+ * A scan for [from, to) is routed to the owner of from, which streams back the keys in its arc in chunks.
+ * At most WINDOW chunks can be unacknowledged at once. When every chunk of its arc has been acknowledged the
+ * owner hands the scan on to its successor, which carries on from the first key it owns.
+ * Chunks are numbered across the whole scan so the requester can put them back in order as they arrive.
+ *
+ * @author Adiswhar Rishi
+ */
+public class RangeScan {
+    private final int CHUNK_SIZE = 16;
+    private final int WINDOW = 4;
+    //a scan that has heard nothing for this long is given up on (milliseconds)
+    private final long IDLE_TIMEOUT = 5000;
+    private cdht_ex peer;
+    //scans this peer is streaming, by requesting peer and request ID
+    private HashMap<Long, Stream> streams;
+    //scans this peer started, by request ID
+    private HashMap<Integer, Scan> scans;
+
+    public RangeScan(cdht_ex peer) {
+        this.peer = peer;
+        streams = new HashMap<Long, Stream>();
+        scans = new HashMap<Integer, Scan>();
+    }
+
+    /**
+     * Starts a scan for every key in [from, to), the results are printed as they arrive
+     *
+     * @param from range 0-255
+     * @param to   range 1-256, greater than from
+     */
+    public synchronized void start(int from, int to) {
+        int requestId = peer.nextRequestId();
+        Scan scan = new Scan(requestId, from, to);
+        scans.put(requestId, scan);
+        scan.touch();
+        handleRequest(MessageFormatter.encodeRangeRequest(peer.ID, peer.getAddress(), requestId, from, to, 0,
+                MessageFormatter.MAX_HOPS));
+    }
+
+    /**
+     * This method should be called every time a range request is received
+     */
+    public synchronized void handleRequest(byte[] request) {
+        ArrayList<Integer> decoded = MessageFormatter.decodeRangeRequest(request);
+        int requester = decoded.get(0);
+        int requestId = decoded.get(1);
+        int from = decoded.get(2);
+        int to = decoded.get(3);
+        int seq = decoded.get(4);
+        int ttl = decoded.get(5);
+        if (!FileTracker.ownsKey(peer, from)) {
+            forward(requester, requestId, from, to, seq, ttl);
+            return;
+        }
+        ArrayList<Integer> keys = new ArrayList<Integer>();
+        int next = from;
+        while (next < to && FileTracker.ownsKey(peer, next)) {
+            keys.add(next++);
+        }
+        Stream s = new Stream(requester, requestId, keys, next, to, seq, ttl);
+        streams.put(streamKey(requester, requestId), s);
+        s.touch();
+        pump(s);
+    }
+
+    /**
+     * This method should be called every time a chunk ack is received
+     */
+    public synchronized void handleAck(byte[] ack) {
+        ArrayList<Integer> decoded = MessageFormatter.decodeRangeAck(ack);
+        Stream s = streams.get(streamKey(decoded.get(0), decoded.get(1)));
+        if (s == null) return;
+        int chunk = decoded.get(2) - s.firstSeq;
+        if (chunk < 0 || chunk >= s.sent || s.acked[chunk]) return;
+        s.acked[chunk] = true;
+        s.ackCount++;
+        s.touch();
+        if (s.ackCount < s.acked.length) {
+            pump(s);
+            return;
+        }
+        //our whole arc has been delivered
+        streams.remove(streamKey(s.requester, s.requestId));
+        s.timeout.cancel();
+        if (s.next < s.to) {
+            forward(s.requester, s.requestId, s.next, s.to, s.firstSeq + s.acked.length, s.ttl);
+        }
+    }
+
+    /**
+     * This method should be called every time a chunk is received for a scan this peer started
+     */
+    public synchronized void handleChunk(byte[] chunk) {
+        ArrayList<Integer> decoded = MessageFormatter.decodeRangeChunk(chunk);
+        int sender = decoded.get(0);
+        int requestId = decoded.get(1);
+        int seq = decoded.get(2);
+        peer.getTcpServer().send(MessageFormatter.encodeRangeAck(peer.ID, requestId, seq), sender);
+        Scan scan = scans.get(requestId);
+        if (scan == null || seq < scan.nextSeq) return; //late or repeated
+        scan.arrived.put(seq, decoded);
+        scan.touch();
+        while (scan.arrived.containsKey(scan.nextSeq)) {
+            if (!deliver(scan, scan.arrived.remove(scan.nextSeq++))) break;
+        }
+    }
+
+    /**
+     * Prints a chunk, returns false once the scan is over
+     *
+     * @param chunk a chunk as returned by MessageFormatter.decodeRangeChunk
+     */
+    private boolean deliver(Scan scan, ArrayList<Integer> chunk) {
+        int status = chunk.get(3);
+        List<Integer> keys = chunk.subList(4, chunk.size());
+        if (!keys.isEmpty()) {
+            scan.total += keys.size();
+            System.out.println(scan + ": keys " + keys + " from peer " + chunk.get(0) + ".");
+        }
+        if (status == MessageFormatter.RANGE_MORE) return true;
+        scans.remove(scan.requestId);
+        scan.timeout.cancel();
+        if (status == MessageFormatter.RANGE_LAST) {
+            System.out.println(scan + " finished, " + scan.total + " keys.");
+        } else {
+            System.out.println(scan + " failed at peer " + chunk.get(0) + " after " + scan.total + " keys.");
+        }
+        return false;
+    }
+
+    /**
+     * Sends as many chunks as the window allows
+     */
+    private void pump(Stream s) {
+        while (s.sent < s.acked.length && s.sent - s.ackCount < WINDOW) {
+            int start = s.sent * CHUNK_SIZE;
+            List<Integer> keys = s.keys.subList(start, Math.min(start + CHUNK_SIZE, s.keys.size()));
+            boolean last = s.sent == s.acked.length - 1 && s.next >= s.to;
+            sendChunk(s.requester, s.requestId, s.firstSeq + s.sent,
+                    (last) ? MessageFormatter.RANGE_LAST : MessageFormatter.RANGE_MORE, keys);
+            s.sent++;
+        }
+    }
+
+    /**
+     * Passes the scan on towards the owner of from, or tells the requester the scan has failed if that is not possible
+     * Once our own arc is done from is our successor, so that is where it goes
+     */
+    private void forward(int requester, int requestId, int from, int to, int seq, int ttl) {
+        int next = peer.fingers.nextHop(from);
+        if (ttl <= 1 || next == -1) {
+            sendChunk(requester, requestId, seq, MessageFormatter.RANGE_FAILED, new ArrayList<Integer>());
+            return;
+        }
+        peer.getTcpServer().send(MessageFormatter.encodeRangeRequest(requester, peer.addressTable.get(requester),
+                requestId, from, to, seq, ttl - 1), next);
+    }
+
+    private void sendChunk(int requester, int requestId, int seq, int status, List<Integer> keys) {
+        peer.getTcpServer().send(MessageFormatter.encodeRangeChunk(peer.ID, peer.getAddress(), requestId, seq,
+                status, keys), requester);
+    }
+
+    private static long streamKey(int requester, int requestId) {
+        return ((long) requester << 32) | (requestId & 0xFFFFFFFFL);
+    }
+
+    private synchronized void expireStream(Stream s) {
+        if (streams.get(streamKey(s.requester, s.requestId)) == s && s.timeout.isExpired()) {
+            streams.remove(streamKey(s.requester, s.requestId));
+            System.out.println("Gave up streaming range scan " + s.requestId + " to peer " + s.requester + ".");
+        }
+    }
+
+    private synchronized void expireScan(Scan scan) {
+        if (scans.get(scan.requestId) == scan && scan.timeout.isExpired()) {
+            scans.remove(scan.requestId);
+            System.out.println(scan + " timed out after " + scan.total + " keys.");
+        }
+    }
+
+    /**
+     * The part of a scan that falls in this peer's arc
+     */
+    private class Stream implements Runnable {
+        int requester;
+        int requestId;
+        ArrayList<Integer> keys;
+        //first key after our arc
+        int next;
+        int to;
+        int firstSeq;
+        int ttl;
+        int sent;
+        int ackCount;
+        boolean[] acked;
+        HashedWheelTimer.Timeout timeout;
+
+        public Stream(int requester, int requestId, ArrayList<Integer> keys, int next, int to, int firstSeq, int ttl) {
+            this.requester = requester;
+            this.requestId = requestId;
+            this.keys = keys;
+            this.next = next;
+            this.to = to;
+            this.firstSeq = firstSeq;
+            this.ttl = ttl;
+            acked = new boolean[(keys.size() + CHUNK_SIZE - 1) / CHUNK_SIZE];
+        }
+
+        void touch() {
+            if (timeout != null) timeout.cancel();
+            timeout = peer.getTimer().schedule(this, IDLE_TIMEOUT, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void run() {
+            expireStream(this);
+        }
+    }
+
+    /**
+     * A scan started by this peer
+     */
+    private class Scan implements Runnable {
+        int requestId;
+        int from;
+        int to;
+        int nextSeq;
+        int total;
+        TreeMap<Integer, ArrayList<Integer>> arrived;
+        HashedWheelTimer.Timeout timeout;
+
+        public Scan(int requestId, int from, int to) {
+            this.requestId = requestId;
+            this.from = from;
+            this.to = to;
+            arrived = new TreeMap<Integer, ArrayList<Integer>>();
+        }
+
+        void touch() {
+            if (timeout != null) timeout.cancel();
+            timeout = peer.getTimer().schedule(this, IDLE_TIMEOUT, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void run() {
+            expireScan(this);
+        }
+
+        @Override
+        public String toString() {
+            return "Range scan [" + from + ", " + to + ")";
+        }
+    }
+}
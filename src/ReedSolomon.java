@@ -0,0 +1,194 @@
+/**
+ * A Reed-Solomon erasure code over GF(2^8)
+ * An object is cut into k data fragments and m parity fragments are worked out from them, any k of the k + m
+ * fragments are enough to put the object back together.
+ * The code is systematic, the data fragments are just the pieces of the object. Parity rows come from a Cauchy
+ * matrix, which makes every k rows of the encoding matrix invertible.
+ *
+ * @author Adiswhar Rishi
+ */
+public class ReedSolomon {
+    //x^8 + x^4 + x^3 + x^2 + 1
+    private static final int POLYNOMIAL = 0x11d;
+    //twice as long as needed so a sum of two logs never has to be reduced
+    private static final int[] EXP = new int[512];
+    private static final int[] LOG = new int[256];
+
+    static {
+        int x = 1;
+        for (int i = 0; i < 255; i++) {
+            EXP[i] = x;
+            LOG[x] = i;
+            x <<= 1;
+            if (x >= 256) x ^= POLYNOMIAL;
+        }
+        for (int i = 255; i < EXP.length; i++) {
+            EXP[i] = EXP[i - 255];
+        }
+    }
+
+    private final int dataCount;
+    private final int parityCount;
+    //parityRows[i][j] is how much of data fragment j goes into parity fragment i
+    private int[][] parityRows;
+
+    /**
+     * @param dataCount   k, the number of fragments needed to rebuild an object
+     * @param parityCount m, the number of fragments that can be lost
+     * @throws IllegalArgumentException if k is less than 1, m is negative or there are more than 256 fragments
+     */
+    public ReedSolomon(int dataCount, int parityCount) {
+        if (dataCount < 1 || parityCount < 0 || dataCount + parityCount > 256) {
+            throw new IllegalArgumentException("a Reed-Solomon code needs k >= 1, m >= 0 and k + m <= 256");
+        }
+        this.dataCount = dataCount;
+        this.parityCount = parityCount;
+        parityRows = new int[parityCount][dataCount];
+        for (int i = 0; i < parityCount; i++) {
+            for (int j = 0; j < dataCount; j++) {
+                //the x and y of the Cauchy matrix never meet, so the sum is never 0
+                parityRows[i][j] = inverse((dataCount + i) ^ j);
+            }
+        }
+    }
+
+    public int getDataCount() {
+        return dataCount;
+    }
+
+    public int getParityCount() {
+        return parityCount;
+    }
+
+    /**
+     * Returns the size of each fragment of an object, the last data fragment is padded with zeros
+     */
+    public int getFragmentSize(int length) {
+        return Math.max(1, (length + dataCount - 1) / dataCount);
+    }
+
+    /**
+     * Splits the object into k + m fragments, fragment i is the i-th row of the result
+     */
+    public byte[][] encode(byte[] object) {
+        int size = getFragmentSize(object.length);
+        byte[][] fragments = new byte[dataCount + parityCount][size];
+        for (int j = 0; j < dataCount; j++) {
+            int start = j * size;
+            if (start < object.length) {
+                System.arraycopy(object, start, fragments[j], 0, Math.min(size, object.length - start));
+            }
+        }
+        for (int i = 0; i < parityCount; i++) {
+            byte[] parity = fragments[dataCount + i];
+            for (int j = 0; j < dataCount; j++) {
+                addMultiple(parity, fragments[j], parityRows[i][j]);
+            }
+        }
+        return fragments;
+    }
+
+    /**
+     * Puts an object back together from any k of its fragments
+     *
+     * @param fragments indexed by fragment number, null where a fragment is missing
+     * @param length    the size of the object before it was encoded
+     * @throws IllegalArgumentException if fewer than k fragments are given or they are not all the same size
+     */
+    public byte[] decode(byte[][] fragments, int length) {
+        int[] used = new int[dataCount];
+        int found = 0;
+        for (int i = 0; i < fragments.length && i < dataCount + parityCount && found < dataCount; i++) {
+            if (fragments[i] != null) used[found++] = i;
+        }
+        if (found < dataCount) {
+            throw new IllegalArgumentException("only " + found + " of the " + dataCount + " fragments needed");
+        }
+        int size = fragments[used[0]].length;
+        for (int i : used) {
+            if (fragments[i].length != size) throw new IllegalArgumentException("fragments differ in size");
+        }
+        //the rows of the encoding matrix that made the fragments we have
+        int[][] rows = new int[dataCount][];
+        for (int r = 0; r < dataCount; r++) {
+            if (used[r] < dataCount) {
+                rows[r] = new int[dataCount];
+                rows[r][used[r]] = 1;
+            } else {
+                rows[r] = parityRows[used[r] - dataCount].clone();
+            }
+        }
+        int[][] inverse = invert(rows);
+        byte[] object = new byte[length];
+        byte[] data = new byte[size];
+        for (int j = 0; j < dataCount && j * size < length; j++) {
+            if (used[j] == j) {
+                //data fragment j came through untouched
+                data = fragments[j];
+            } else {
+                data = new byte[size];
+                for (int r = 0; r < dataCount; r++) {
+                    addMultiple(data, fragments[used[r]], inverse[j][r]);
+                }
+            }
+            System.arraycopy(data, 0, object, j * size, Math.min(size, length - j * size));
+        }
+        return object;
+    }
+
+    /**
+     * Adds factor * source to target, byte by byte
+     */
+    private static void addMultiple(byte[] target, byte[] source, int factor) {
+        if (factor == 0) return;
+        int logFactor = LOG[factor];
+        for (int b = 0; b < target.length; b++) {
+            int s = source[b] & 0xff;
+            if (s != 0) target[b] ^= EXP[LOG[s] + logFactor];
+        }
+    }
+
+    private static int multiply(int a, int b) {
+        return (a == 0 || b == 0) ? 0 : EXP[LOG[a] + LOG[b]];
+    }
+
+    private static int inverse(int a) {
+        return EXP[255 - LOG[a]];
+    }
+
+    /**
+     * Inverts a square matrix by Gauss-Jordan elimination, the matrix given is used up
+     */
+    private static int[][] invert(int[][] matrix) {
+        int n = matrix.length;
+        int[][] result = new int[n][n];
+        for (int i = 0; i < n; i++) {
+            result[i][i] = 1;
+        }
+        for (int col = 0; col < n; col++) {
+            int pivot = col;
+            while (pivot < n && matrix[pivot][col] == 0) pivot++;
+            if (pivot == n) throw new IllegalArgumentException("fragments do not determine the object");
+            int[] swap = matrix[col];
+            matrix[col] = matrix[pivot];
+            matrix[pivot] = swap;
+            swap = result[col];
+            result[col] = result[pivot];
+            result[pivot] = swap;
+            int scale = inverse(matrix[col][col]);
+            for (int c = 0; c < n; c++) {
+                matrix[col][c] = multiply(matrix[col][c], scale);
+                result[col][c] = multiply(result[col][c], scale);
+            }
+            for (int r = 0; r < n; r++) {
+                int factor = matrix[r][col];
+                if (r == col || factor == 0) continue;
+                for (int c = 0; c < n; c++) {
+                    matrix[r][c] ^= multiply(factor, matrix[col][c]);
+                    result[r][c] ^= multiply(factor, result[col][c]);
+                }
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,157 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Saves and loads the routing state of a peer so that a restarted peer can carry on where it left off
+ * Every saved state is a record in the peer's write-ahead log, the latest one is what a restart picks up.
+ * Nothing is saved or loaded unless cdht.stateDir is set.
+ *
+ * @author Adiswhar Rishi
+ */
+public class RoutingSnapshot implements WriteAheadLog.Client {
+    public static final char RECORD_TYPE = 'R';
+    private final int ID;
+    private PeerAddressTable addressTable;
+    private WriteAheadLog log;
+    //the routing state last saved or replayed from the log, as it is written in a record
+    private byte[] latest;
+
+    public RoutingSnapshot(int peerId, PeerAddressTable addressTable, WriteAheadLog log) {
+        ID = peerId;
+        this.addressTable = addressTable;
+        this.log = log;
+        log.register(RECORD_TYPE, this);
+    }
+
+    /**
+     * Writes the snapshot to the log, it is on disk once the log's next batch has been written
+     *
+     * @param successors   successor IDs in order
+     * @param seqNums      the next ping sequence number of each successor
+     * @param predecessors predecessor IDs, most recent first
+     * @param fingers      finger i at position i, -1 where a finger is not known
+     */
+    public synchronized void save(List<Integer> successors, List<Integer> seqNums, List<Integer> predecessors,
+                                  List<Integer> fingers) {
+        if (!log.isEnabled()) return;
+        Properties p = new Properties();
+        p.setProperty("id", "" + ID);
+        p.setProperty("successors", encodePeers(successors));
+        p.setProperty("sequence", encodeNumbers(seqNums));
+        p.setProperty("predecessors", encodePeers(predecessors));
+        //the fingers that are known and which finger each one is, kept apart so the addresses can be saved
+        ArrayList<Integer> known = new ArrayList<Integer>();
+        ArrayList<Integer> slots = new ArrayList<Integer>();
+        for (int i = 0; i < fingers.size(); i++) {
+            if (fingers.get(i) == -1) continue;
+            known.add(fingers.get(i));
+            slots.add(i);
+        }
+        p.setProperty("fingers", encodePeers(known));
+        p.setProperty("fingerSlots", encodeNumbers(slots));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            p.store(out, null);
+        } catch (IOException e) {
+            //a byte array can not fail to be written to
+            throw new IllegalStateException(e);
+        }
+        latest = out.toByteArray();
+        log.append(RECORD_TYPE, latest, null);
+    }
+
+    /**
+     * Loads the snapshot, any addresses in it are added to the address table
+     * Returns null if there is no snapshot or it can not be used
+     */
+    public synchronized State load() {
+        if (!log.isEnabled() || latest == null) return null;
+        Properties p = new Properties();
+        try {
+            p.load(new ByteArrayInputStream(latest));
+            if (Integer.parseInt(p.getProperty("id", "-1")) != ID) return null;
+            State s = new State();
+            s.successors = decodePeers(p.getProperty("successors", ""));
+            s.seqNums = decodeNumbers(p.getProperty("sequence", ""));
+            s.predecessors = decodePeers(p.getProperty("predecessors", ""));
+            //a snapshot from before fingers were saved has none
+            ArrayList<Integer> known = decodePeers(p.getProperty("fingers", ""));
+            ArrayList<Integer> slots = decodeNumbers(p.getProperty("fingerSlots", ""));
+            s.fingers = new ArrayList<Integer>();
+            for (int i = 0; i < known.size() && i < slots.size(); i++) {
+                if (slots.get(i) < 0 || slots.get(i) >= 256) continue;
+                while (s.fingers.size() <= slots.get(i)) s.fingers.add(-1);
+                s.fingers.set(slots.get(i), known.get(i));
+            }
+            return s;
+        } catch (IOException e) {
+            System.err.println("Could not read routing snapshot: " + e.getMessage());
+        } catch (IllegalArgumentException e) {
+            //also covers NumberFormatException, the log has been corrupted or edited by hand
+            System.err.println("Ignoring malformed routing snapshot");
+        }
+        return null;
+    }
+
+    @Override
+    public synchronized void replay(byte[] record) {
+        //only the last state matters
+        latest = record;
+    }
+
+    @Override
+    public synchronized void checkpoint(List<byte[]> records) {
+        if (latest != null) records.add(latest);
+    }
+
+    private String encodePeers(List<Integer> peers) {
+        String s = "";
+        for (int i : peers) {
+            s += ((s.isEmpty()) ? "" : ",") + MessageFormatter.encodePeer(i, addressTable.get(i));
+        }
+        return s;
+    }
+
+    private ArrayList<Integer> decodePeers(String s) {
+        ArrayList<Integer> r = new ArrayList<Integer>();
+        if (s.trim().isEmpty()) return r;
+        for (String peer : s.split(",")) {
+            int id = MessageFormatter.decodePeerId(peer);
+            addressTable.put(id, MessageFormatter.decodePeerAddress(peer));
+            r.add(id);
+        }
+        return r;
+    }
+
+    private static String encodeNumbers(List<Integer> numbers) {
+        String s = "";
+        for (int i : numbers) {
+            s += ((s.isEmpty()) ? "" : ",") + i;
+        }
+        return s;
+    }
+
+    private static ArrayList<Integer> decodeNumbers(String s) {
+        ArrayList<Integer> r = new ArrayList<Integer>();
+        if (s.trim().isEmpty()) return r;
+        for (String n : s.split(",")) {
+            r.add(Integer.parseInt(n.trim()));
+        }
+        return r;
+    }
+
+    /**
+     * The routing state read back from a snapshot
+     */
+    public static class State {
+        public ArrayList<Integer> successors;
+        public ArrayList<Integer> seqNums;
+        public ArrayList<Integer> predecessors;
+        //finger i at position i, -1 where a finger was not known
+        public ArrayList<Integer> fingers;
+    }
+}
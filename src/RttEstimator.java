@@ -0,0 +1,83 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Keeps a smoothed round trip time for every peer this peer has talked to
+ * Samples come from ping responses and from the time it takes to open a TCP connection to the peer.
+ * Smoothing is done the same way TCP does it for its retransmit timer (RFC 6298).
+ *
+ * @author Adiswhar Rishi
+ */
+public class RttEstimator {
+    //indexed by peer ID, so a sample from a ping does not box the ID
+    private AtomicReferenceArray<Estimate> estimates;
+
+    public RttEstimator() {
+        estimates = new AtomicReferenceArray<Estimate>(256);
+    }
+
+    /**
+     * Adds a round trip time measured to a peer
+     */
+    public void sample(int peerId, long rttNanos) {
+        if (rttNanos < 0 || peerId < 0 || peerId >= estimates.length()) return;
+        Estimate e = estimates.get(peerId);
+        if (e == null) {
+            estimates.compareAndSet(peerId, null, new Estimate());
+            e = estimates.get(peerId);
+        }
+        e.update(rttNanos);
+    }
+
+    /**
+     * Returns the smoothed round trip time to a peer in nanoseconds, or -1 if nothing has been measured yet
+     */
+    public long getSmoothedRtt(int peerId) {
+        Estimate e = (peerId < 0 || peerId >= estimates.length()) ? null : estimates.get(peerId);
+        return (e == null) ? -1 : e.getSmoothed();
+    }
+
+    /**
+     * Returns how long to wait for an answer from a peer before sending again (srtt + 4 * rttvar)
+     *
+     * @param defaultMillis used if nothing has been measured yet
+     * @param minMillis     the timeout is never shorter than this
+     */
+    public long getRetransmitTimeout(int peerId, long defaultMillis, long minMillis) {
+        Estimate e = (peerId < 0 || peerId >= estimates.length()) ? null : estimates.get(peerId);
+        if (e == null) return defaultMillis;
+        return Math.max(minMillis, TimeUnit.NANOSECONDS.toMillis(e.getTimeout()));
+    }
+
+    /**
+     * Writes the smoothed round trip time to a peer in milliseconds, for printing
+     */
+    public String describe(int peerId) {
+        long rtt = getSmoothedRtt(peerId);
+        return (rtt == -1) ? "unknown" : String.format("%.2f ms", rtt / (double) TimeUnit.MILLISECONDS.toNanos(1));
+    }
+
+    private static class Estimate {
+        long srtt = -1;
+        long rttvar;
+
+        synchronized void update(long sample) {
+            if (srtt == -1) {
+                srtt = sample;
+                rttvar = sample / 2;
+            } else {
+                //rttvar moves a quarter and srtt an eighth of the way towards the new sample
+                rttvar += (Math.abs(srtt - sample) - rttvar) / 4;
+                srtt += (sample - srtt) / 8;
+            }
+        }
+
+        synchronized long getSmoothed() {
+            return srtt;
+        }
+
+        synchronized long getTimeout() {
+            return srtt + 4 * rttvar;
+        }
+    }
+}
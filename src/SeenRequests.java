@@ -0,0 +1,51 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A short lived record of the requests a peer has already handled
+ * Entries are forgotten after a few seconds, and the oldest are dropped early if there are too many
+ *
+ * @author Adiswhar Rishi
+ */
+public class SeenRequests {
+    private final long LIFETIME_NANOS;
+    private final int MAX_ENTRIES;
+    //expiry time of each request, kept in the order they were added, which is also the order they expire in
+    private LinkedHashMap<Long, Long> seen;
+
+    /**
+     * @param lifetimeMillis how long a request is remembered for
+     * @param maxEntries     most requests remembered at once
+     */
+    public SeenRequests(long lifetimeMillis, int maxEntries) {
+        LIFETIME_NANOS = lifetimeMillis * 1000000L;
+        MAX_ENTRIES = maxEntries;
+        seen = new LinkedHashMap<Long, Long>();
+    }
+
+    /**
+     * Records a request if it has not been seen before
+     *
+     * @param originPeer the peer that started the request
+     * @param requestId  the ID given to the request by originPeer
+     * @return true if the request is new
+     */
+    public synchronized boolean firstSeen(int originPeer, int requestId) {
+        long now = System.nanoTime();
+        expire(now);
+        long key = ((long) originPeer << 32) | (requestId & 0xFFFFFFFFL);
+        if (seen.containsKey(key)) return false;
+        seen.put(key, now + LIFETIME_NANOS);
+        return true;
+    }
+
+    private void expire(long now) {
+        Iterator<Map.Entry<Long, Long>> it = seen.entrySet().iterator();
+        while (it.hasNext()) {
+            long expiry = it.next().getValue();
+            if (expiry - now > 0 && seen.size() < MAX_ENTRIES) break;
+            it.remove();
+        }
+    }
+}
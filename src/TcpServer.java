@@ -1,29 +1,58 @@
 import java.io.IOException;
 import java.net.ConnectException;
-import java.net.InetSocketAddress;
-import java.net.SocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
- * * The TCP server listens for TCP data on port 50000 + boundPeer.getTcpPort()
+ * * The TCP server listens for TCP data on boundPeer.getAddress()
+ * Work is split into two lanes, each with a bounded queue -
+ * the data lane carries file requests and is shed when it is full,
+ * the control lane carries successor requests/responses and departures, runs at a higher priority
+ * and hands anything that does not fit to an overflow thread instead of dropping it. Control messages are sent
+ * from the timer thread, so the caller is never made to do the send itself.
+ * Received messages are split the same way. The accepting thread waits for the first few bytes of every connection
+ * without blocking, so each message is put on the data or control receive queue by its type and file requests can
+ * never hold up a successor request.
  *
  * @author Adiswhar Rishi
  */
 public class TcpServer implements Runnable {
     private cdht_ex boundPeer;
     private ServerSocketChannel tcpServer;
-    private ExecutorService threadManager;
+    //a connection that has not sent the start of its message after this long is closed (milliseconds)
+    private final long PREFIX_TIMEOUT = 5000;
+    //enough of a message to tell if it is a control message
+    private final int PREFIX_SIZE = 3;
+    private ThreadPoolExecutor receivers;
+    private ThreadPoolExecutor controlReceivers;
+    private WorkQueues.Handoff controlReceiveOverflow;
+    private ThreadPoolExecutor dataSenders;
+    private ThreadPoolExecutor controlLane;
+    private WorkQueues.Handoff controlOverflow;
     private boolean state;
+    //file requests that have passed through this peer recently, used to drop repeats
+    private SeenRequests seenRequests;
 
     public TcpServer(cdht_ex boundPeer) {
         this.boundPeer = boundPeer;
-        threadManager = Executors.newFixedThreadPool(5);
+        controlOverflow = new WorkQueues.Handoff("Control Lane", 256);
+        controlLane = WorkQueues.bounded("Control Lane", 2, 64, Thread.MAX_PRIORITY, controlOverflow);
+        receivers = WorkQueues.bounded("TCP Receiver", 5, 64, Thread.NORM_PRIORITY, new ReceiverOverflow());
+        controlReceiveOverflow = new WorkQueues.Handoff("Control Receiver", 256);
+        controlReceivers = WorkQueues.bounded("Control Receiver", 2, 64, Thread.MAX_PRIORITY,
+                controlReceiveOverflow);
+        dataSenders = WorkQueues.bounded("TCP Sender", 5, 256, Thread.NORM_PRIORITY,
+                new WorkQueues.Shed("TCP data send"));
         state = true;
+        seenRequests = new SeenRequests(10000, 4096);
         try {
             tcpServer = ServerSocketChannel.open();
         } catch (IOException e) {
@@ -35,23 +64,74 @@ public class TcpServer implements Runnable {
     @Override
     /**
      * Runs the server in non-blocking mode and creates worker threads to handle requests
+     * A connection is only handed to a worker once the start of its message shows which lane it belongs to
      */
     public void run() {
         try {
+            Selector selector = Selector.open();
+            tcpServer.register(selector, SelectionKey.OP_ACCEPT);
+            ArrayList<TcpReceiver> ready = new ArrayList<TcpReceiver>();
             while (state) {
-                SocketChannel socketChannel = null;
-                socketChannel = tcpServer.accept();
-                if (socketChannel == null) continue;
-                //at this point we have a connection
-                threadManager.execute(new TcpReceiver(socketChannel));
+                selector.select(100);
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid()) continue;
+                    if (key.isAcceptable()) {
+                        SocketChannel socketChannel = tcpServer.accept();
+                        if (socketChannel == null) continue;
+                        //at this point we have a connection
+                        socketChannel.configureBlocking(false);
+                        socketChannel.register(selector, SelectionKey.OP_READ, new TcpReceiver(socketChannel));
+                    } else if (key.isReadable()) {
+                        TcpReceiver r = (TcpReceiver) key.attachment();
+                        if (r.readPrefix()) {
+                            key.cancel();
+                            ready.add(r);
+                        }
+                    }
+                }
+                closeStalled(selector);
+                if (ready.isEmpty()) continue;
+                //a channel can only go back to blocking once its cancelled key has been removed by a select
+                selector.selectNow();
+                for (TcpReceiver r : ready) {
+                    r.socketChannel.configureBlocking(true);
+                    (r.isControlMessage() ? controlReceivers : receivers).execute(r);
+                }
+                ready.clear();
             }
+            selector.close();
             tcpServer.close();
-            threadManager.shutdown();
+            receivers.shutdown();
+            controlReceivers.shutdown();
+            controlReceiveOverflow.shutdown();
+            dataSenders.shutdown();
+            controlLane.shutdown();
+            controlOverflow.shutdown();
         } catch (IOException ex) {
             ex.printStackTrace();
         }
     }
 
+    /**
+     * Closes connections that have not sent the start of their message in time, so they can not pile up
+     */
+    private void closeStalled(Selector selector) {
+        long cutoff = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(PREFIX_TIMEOUT);
+        for (SelectionKey key : selector.keys()) {
+            if (!(key.attachment() instanceof TcpReceiver)) continue;
+            TcpReceiver r = (TcpReceiver) key.attachment();
+            if (r.acceptedAt - cutoff > 0) continue;
+            key.cancel();
+            try {
+                r.socketChannel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
     /**
      * Stops server execution. The thread will shut down after all worker tasks have finished
      */
@@ -64,7 +144,7 @@ public class TcpServer implements Runnable {
      */
     private void bindServer() {
         try {
-            tcpServer.bind(new InetSocketAddress("localhost", boundPeer.getTcpPort()));
+            tcpServer.bind(boundPeer.getAddress());
             //we will set it to non-blocking
             tcpServer.configureBlocking(false);
         } catch (IOException e) {
@@ -72,76 +152,328 @@ public class TcpServer implements Runnable {
         }
     }
 
-    public void send(byte[] data, SocketAddress reveiverAddress) {
-        ByteBuffer d = (ByteBuffer) (ByteBuffer.allocate(data.length)).put(data).flip();
-        try {
-            SocketChannel socketChannel = SocketChannel.open();
-            threadManager.execute(new TcpSender(socketChannel, reveiverAddress, d));
-        } catch (IOException e) {
-            e.printStackTrace();
+    /**
+     * Sends the data to a peer over a new connection, or as a datagram if the UDP transport carries it
+     * The address of the peer is taken from the address table of boundPeer
+     *
+     * @param data       any byte data
+     * @param receiverId the peer to send to
+     */
+    public void send(final byte[] data, final int receiverId) {
+        if (boundPeer.getUdpTransport().carries(data)) {
+            boundPeer.getUdpTransport().send(data, receiverId);
+            return;
+        }
+        final ThreadPoolExecutor lane = (MessageFormatter.isControlMessage(data)) ? controlLane : dataSenders;
+        Runnable send = new Runnable() {
+            @Override
+            public void run() {
+                ByteBuffer d = (ByteBuffer) (ByteBuffer.allocate(data.length)).put(data).flip();
+                lane.execute(new TcpSender(receiverId, d, (lane == controlLane) ? "control" : "data"));
+            }
+        };
+        if (boundPeer.getEmulator() == null) {
+            send.run();
+        } else {
+            boundPeer.getEmulator().send(receiverId, NetworkEmulator.TCP, send);
         }
     }
 
+    private static String describeFailure(int status) {
+        switch (status) {
+            case MessageFormatter.FILE_HOP_LIMIT:
+                return "hop limit reached";
+            case MessageFormatter.FILE_NO_ROUTE:
+                return "no successor to forward to";
+            case MessageFormatter.FILE_LOOP:
+                return "forwarding loop";
+            default:
+                return "unknown reason " + status;
+        }
+    }
+
+    /**
+     * Sends a file response straight to the peer that started the request
+     */
+    private void respondToFileRequest(ArrayList<Integer> decodedRequest, String filename, int status, int hops) {
+        byte[] response = MessageFormatter.encodeFileResponse(boundPeer.ID, boundPeer.getAddress(),
+                decodedRequest.get(1), filename, status, decodedRequest.get(0), decodedRequest.get(2), hops);
+        send(response, decodedRequest.get(0));
+    }
+
+    /**
+     * Hands a message that did not arrive over TCP to the receivers, as if it had
+     */
+    public void deliver(byte[] request) {
+        (MessageFormatter.isControlMessage(request) ? controlReceivers : receivers).execute(new Delivery(request));
+    }
+
+    /**
+     * Acts on a message received from another peer
+     * Used for messages read from a TCP connection and for those that arrived as datagrams
+     *
+     * @return false if the message was not recognised
+     */
+    public boolean dispatch(byte[] request) {
+        FlightEvents.MessageDispatch event = FlightEvents.startDispatch();
+        boolean handled = handle(request, event);
+        if (event == null) return handled;
+        event.end();
+        if (event.shouldCommit()) {
+            event.peerId = boundPeer.ID;
+            event.senderId = MessageFormatter.peekSender(request);
+            event.messageType = MessageFormatter.messageType(request);
+            event.size = request.length;
+            event.handled = handled;
+            event.commit();
+        }
+        return handled;
+    }
+
+    /**
+     * Records the time taken to recognise a file request or response and read its fields
+     *
+     * @param event null if nothing is recording it
+     */
+    private void recordDecode(FlightEvents.MessageDecode event, byte[] request, int hops) {
+        if (event == null) return;
+        event.end();
+        if (!event.shouldCommit()) return;
+        event.peerId = boundPeer.ID;
+        event.senderId = MessageFormatter.peekSender(request);
+        event.messageType = MessageFormatter.messageType(request);
+        event.size = request.length;
+        event.hop = hops;
+        event.commit();
+    }
+
+    /**
+     * Records what was done with a file request
+     *
+     * @param next  the peer it was forwarded to, -1 if it was not forwarded
+     * @param route how next was chosen, null if it was not forwarded
+     */
+    private void recordLookup(ArrayList<Integer> decodedRequest, int hops, String decision, int next,
+                              String route) {
+        FlightEvents.LookupForward event = FlightEvents.startLookup();
+        if (event == null || !event.shouldCommit()) return;
+        event.peerId = boundPeer.ID;
+        event.requesterId = decodedRequest.get(0);
+        event.requestId = decodedRequest.get(2);
+        event.fileId = decodedRequest.get(1);
+        event.hop = hops;
+        event.decision = decision;
+        event.nextHopId = next;
+        event.route = route;
+        event.commit();
+    }
+
+    /**
+     * The body of dispatch, the hop count of a file request or response is put in the dispatch event
+     *
+     * @param dispatchEvent null if nothing is recording it
+     */
+    private boolean handle(byte[] request, FlightEvents.MessageDispatch dispatchEvent) {
+        //the decode event runs from here until a file request or response has been recognised and decoded
+        FlightEvents.MessageDecode decodeEvent = FlightEvents.startDecode();
+        MessageFormatter.learnAddresses(request, boundPeer.addressTable);
+        if (MessageFormatter.isDepartingMessage(request)) {
+            ArrayList<Integer> decodedMessage = MessageFormatter.decodeDepartingMessage(request);
+            boundPeer.peerTracker.registerGracefulDepart(decodedMessage.get(0),
+                    decodedMessage.subList(1, decodedMessage.size()));
+        } else if (MessageFormatter.isSuccessorRequest(request)) {
+            byte[] response = MessageFormatter.encodeSuccessorResponse(boundPeer.ID,
+                    boundPeer.peerTracker.getSuccessors(), boundPeer.addressTable);
+            send(response, MessageFormatter.determineTcpPeer(request));
+        } else if (MessageFormatter.isSuccessorResponse(request)) {
+            ArrayList<Integer> decodedMessage = MessageFormatter.decodeSuccessorResponse(request);
+            boundPeer.peerTracker.registerSuccessorResponse(decodedMessage.get(0),
+                    decodedMessage.subList(1, decodedMessage.size()));
+        } else if (MessageFormatter.isFileRequest(request)) {
+            ArrayList<Integer> decodedMessage = MessageFormatter.decodeFileRequest(request);
+            String filename = MessageFormatter.decodeFileName(request);
+            int fileId = decodedMessage.get(1);
+            int ttl = decodedMessage.get(3);
+            int hops = MessageFormatter.MAX_HOPS - ttl + 1;
+            recordDecode(decodeEvent, request, hops);
+            if (dispatchEvent != null) dispatchEvent.hop = hops;
+            int successor = boundPeer.peerTracker.getSuccessorId(1);
+            if (hops > FingerTable.RING_SIZE) {
+                //it has visited more peers than the ring can hold, so it must have gone round more than once
+                System.out.println("File request for " + filename + " has looped back to me.");
+                recordLookup(decodedMessage, hops, "loop", -1, null);
+                respondToFileRequest(decodedMessage, filename, MessageFormatter.FILE_LOOP, hops);
+            } else if (!seenRequests.firstSeen(decodedMessage.get(0), decodedMessage.get(2))) {
+                //the same request reached us again, by another path or on a retry, the first copy is being handled
+                System.out.println("Dropped a duplicate file request for " + filename + ".");
+                recordLookup(decodedMessage, hops, "duplicate", -1, null);
+            } else if (FileTracker.ownsKey(boundPeer, fileId)) {
+                System.out.println("File " + filename + " is here.");
+                recordLookup(decodedMessage, hops, "found", -1, null);
+                respondToFileRequest(decodedMessage, filename, MessageFormatter.FILE_FOUND, hops);
+                System.out.println("A response message, destined for peer " +
+                        decodedMessage.get(0) + ", has been sent.");
+            } else if (decodedMessage.get(0) == boundPeer.ID) {
+                //it has come back to the peer that started it without finding the key's owner
+                System.out.println("File request for " + filename + " has looped back to me.");
+                recordLookup(decodedMessage, hops, "loop", -1, null);
+                respondToFileRequest(decodedMessage, filename, MessageFormatter.FILE_LOOP, hops);
+            } else if (ttl <= 1) {
+                System.out.println("File request for " + filename + " has run out of hops.");
+                recordLookup(decodedMessage, hops, "hop limit", -1, null);
+                respondToFileRequest(decodedMessage, filename, MessageFormatter.FILE_HOP_LIMIT, hops);
+            } else if (successor == -1) {
+                System.out.println("File " + filename + " is not stored here and I have no successor.");
+                recordLookup(decodedMessage, hops, "no route", -1, null);
+                respondToFileRequest(decodedMessage, filename, MessageFormatter.FILE_NO_ROUTE, hops);
+            } else {
+                System.out.println("File " + filename + " is not stored here.");
+                byte[] forward = MessageFormatter.encodeFileRequest(decodedMessage.get(0),
+                        boundPeer.addressTable.get(decodedMessage.get(0)), fileId, filename,
+                        decodedMessage.get(2), ttl - 1);
+                int next = boundPeer.fingers.nextHop(fileId);
+                int second = boundPeer.peerTracker.getSuccessorId(2);
+                if (next == -1) next = successor;
+                String route = (next == successor) ? "successor" : (next == second) ? "second successor" : "finger";
+                recordLookup(decodedMessage, hops, "forwarded", next, route);
+                send(forward, next);
+                if (next == successor) {
+                    System.out.println("File request message has been forwarded to my successor.");
+                } else if (next == second) {
+                    System.out.println("File request message has been forwarded to my second successor.");
+                } else {
+                    System.out.println("File request message has been forwarded to peer " + next + " ("
+                            + boundPeer.rtts.describe(next) + ").");
+                }
+            }
+        } else if (MessageFormatter.isFileResponse(request)) {
+            ArrayList<Integer> decodedMessage = MessageFormatter.decodeFileResponse(request);
+            String filename = MessageFormatter.decodeFileName(request);
+            recordDecode(decodeEvent, request, decodedMessage.get(5));
+            if (dispatchEvent != null) dispatchEvent.hop = decodedMessage.get(5);
+            boundPeer.completeLookup(decodedMessage.get(4));
+            if (decodedMessage.get(2) == MessageFormatter.FILE_FOUND) {
+                System.out.println("Received a response message from peer " +
+                        decodedMessage.get(0) + ", which has the file " + filename + ".");
+            } else {
+                System.out.println("File request for " + filename + " failed at peer " +
+                        decodedMessage.get(0) + " after " + decodedMessage.get(5) + " hops ("
+                        + describeFailure(decodedMessage.get(2)) + ").");
+            }
+        } else if (MessageFormatter.isFingerLookup(request)) {
+            boundPeer.fingers.handleLookup(request);
+        } else if (MessageFormatter.isFingerAnswer(request)) {
+            boundPeer.fingers.handleAnswer(request);
+        } else if (MessageFormatter.isBroadcast(request)) {
+            boundPeer.broadcasts.handleBroadcast(request);
+        } else if (MessageFormatter.isBroadcastReply(request)) {
+            boundPeer.broadcasts.handleReply(request);
+        } else if (MessageFormatter.isFragmentStore(request)) {
+            boundPeer.erasureStore.handleStore(request);
+        } else if (MessageFormatter.isFragmentAck(request)) {
+            boundPeer.erasureStore.handleAck(request);
+        } else if (MessageFormatter.isFragmentFetch(request)) {
+            boundPeer.erasureStore.handleFetch(request);
+        } else if (MessageFormatter.isFragmentReply(request)) {
+            boundPeer.erasureStore.handleReply(request);
+        } else if (MessageFormatter.isFragmentRepair(request)) {
+            boundPeer.erasureStore.handleRepair(request);
+        } else if (MessageFormatter.isRangeRequest(request)) {
+            boundPeer.rangeScan.handleRequest(request);
+        } else if (MessageFormatter.isRangeChunk(request)) {
+            boundPeer.rangeScan.handleChunk(request);
+        } else if (MessageFormatter.isRangeAck(request)) {
+            boundPeer.rangeScan.handleAck(request);
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Called when the data receiver queue is full, the message is dropped by closing the connection
+     * Control messages have their own receive queue, so they never get here
+     */
+    private class ReceiverOverflow extends WorkQueues.Shed {
+        public ReceiverOverflow() {
+            super("TCP receive");
+        }
+
+        @Override
+        protected void dropped(Runnable r) {
+            if (!(r instanceof TcpReceiver)) return;
+            try {
+                ((TcpReceiver) r).socketChannel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+
+    /**
+     * Records a message that has been read, the event is ended here
+     *
+     * @param event null if nothing is recording it
+     */
+    private void recordReceive(FlightEvents.MessageReceive event, byte[] request, String transport, long queuedAt,
+                               long startedAt) {
+        if (event == null) return;
+        event.end();
+        if (!event.shouldCommit()) return;
+        event.peerId = boundPeer.ID;
+        event.senderId = MessageFormatter.peekSender(request);
+        event.messageType = MessageFormatter.messageType(request);
+        event.size = request.length;
+        event.hop = MessageFormatter.peekHop(request);
+        event.transport = transport;
+        event.queueTime = startedAt - queuedAt;
+        event.commit();
+    }
 
     private class TcpReceiver implements Runnable {
         SocketChannel socketChannel;
         ByteBuffer storeBuffer;
+        //when the connection was accepted (System.nanoTime)
+        long acceptedAt;
 
         public TcpReceiver(SocketChannel incommingConnection) {
             socketChannel = incommingConnection;
             storeBuffer = ByteBuffer.allocate(MessageFormatter.MAX_TCP_SIZE);
+            acceptedAt = System.nanoTime();
+        }
+
+        /**
+         * Reads whatever has arrived without blocking, called by the accepting thread
+         * Anything read is kept, run() carries on from where this left off
+         *
+         * @return true once enough has been read to tell what kind of message it is, or the sender is done
+         */
+        public boolean readPrefix() {
+            try {
+                if (socketChannel.read(storeBuffer) == -1) return true;
+            } catch (IOException e) {
+                //run() will hit the same error and give up on the connection
+                return true;
+            }
+            return storeBuffer.position() >= PREFIX_SIZE;
+        }
+
+        public boolean isControlMessage() {
+            return MessageFormatter.isControlMessage(Arrays.copyOf(storeBuffer.array(), storeBuffer.position()));
         }
 
         @Override
         public void run() {
+            long startedAt = System.nanoTime();
+            FlightEvents.MessageReceive event = FlightEvents.startReceive();
             try {
-                int bytesread = socketChannel.read(storeBuffer);
-                storeBuffer.flip();
-                byte[] request = new byte[MessageFormatter.MAX_TCP_SIZE];
-                int i = 0;
-                while (storeBuffer.hasRemaining()) {
-                    request[i++] = storeBuffer.get();
-                }
-                //for now lets just act as an echo server
-                if (MessageFormatter.isDepartingMessage(request)) {
-                    ArrayList<Integer> decodedMessage = MessageFormatter.decodeDepartingMessage(request);
-                    boundPeer.peerTracker.registerGracefulDepart(decodedMessage.get(0),
-                            decodedMessage.subList(1, decodedMessage.size()));
-                } else if (MessageFormatter.isSuccessorRequest(request)) {
-                    byte[] response = MessageFormatter.encodeSuccessorResponse(boundPeer.ID,
-                            boundPeer.peerTracker.getSuccessors());
-                    InetSocketAddress address = new InetSocketAddress("localhost",
-                            cdht_ex.PORT_BASE + MessageFormatter.determineTcpPeer(request));
-                    send(response, address);
-                } else if (MessageFormatter.isSuccessorResponse(request)) {
-                    ArrayList<Integer> decodedMessage = MessageFormatter.decodeSuccessorResponse(request);
-                    boundPeer.peerTracker.registerSuccessorResponse(decodedMessage.get(0),
-                            decodedMessage.subList(1, decodedMessage.size()));
-                } else if (MessageFormatter.isFileRequest(request)) {
-                    ArrayList<Integer> decodedMessage = MessageFormatter.decodeFileRequest(request);
-                    if (FileTracker.hasFile(boundPeer, "" + decodedMessage.get(1))) {
-                        System.out.println("File " + decodedMessage.get(1) + " is here.");
-                        byte[] response = MessageFormatter.encodeFileResponse(boundPeer.ID,
-                                "" + decodedMessage.get(1), true, decodedMessage.get(0));
-                        InetSocketAddress address = new InetSocketAddress("localhost",
-                                cdht_ex.PORT_BASE + decodedMessage.get(0));
-                        send(response, address);
-                        System.out.println("A response message, destined for peer " +
-                                decodedMessage.get(0) + ", has been sent.");
-                    } else {
-                        System.out.println("File " + decodedMessage.get(1) + " is not stored here.");
-                        InetSocketAddress address = new InetSocketAddress("localhost",
-                                cdht_ex.PORT_BASE + boundPeer.peerTracker.getSuccessorId(1));
-                        send(request, address);
-                        System.out.println("File request message has been forwarded to my successor.");
-                    }
-                } else if (MessageFormatter.isFileResponse(request)) {
-                    ArrayList<Integer> decodedMessage = MessageFormatter.decodeFileResponse(request);
-                    System.out.println("Received a response message from peer " +
-                            decodedMessage.get(0) + ", which has the file " + decodedMessage.get(1)+".");
-                } else {
+                //senders close the connection once the message is written
+                while (storeBuffer.hasRemaining() && socketChannel.read(storeBuffer) != -1) ;
+                byte[] request = Arrays.copyOf(storeBuffer.array(), storeBuffer.position());
+                recordReceive(event, request, "tcp", acceptedAt, startedAt);
+                if (!dispatch(request)) {
                     //act as an echo server
-                    ByteBuffer response = ByteBuffer.allocate(MessageFormatter.MAX_TCP_SIZE);
+                    ByteBuffer response = ByteBuffer.allocate(request.length);
                     response.put(request);
                     response.flip();
 
@@ -157,30 +489,81 @@ public class TcpServer implements Runnable {
         }
     }
 
+    /**
+     * A message that has already been read, such as one that arrived as a datagram
+     */
+    private class Delivery implements Runnable {
+        byte[] request;
+        long queuedAt;
+
+        public Delivery(byte[] request) {
+            this.request = request;
+            queuedAt = System.nanoTime();
+        }
+
+        @Override
+        public void run() {
+            recordReceive(FlightEvents.startReceive(), request, "udp", queuedAt, System.nanoTime());
+            dispatch(request);
+        }
+    }
+
     private class TcpSender implements Runnable {
-        SocketChannel socketChannel;
-        SocketAddress socketAddress;
+        int receiverId;
         ByteBuffer data;
+        //the lane the sender was queued on and when (System.nanoTime), for the send event
+        String lane;
+        long queuedAt;
 
-        public TcpSender(SocketChannel socketChannel, SocketAddress socketAddress, ByteBuffer data) {
+        public TcpSender(int receiverId, ByteBuffer data, String lane) {
             this.data = data;
-            this.socketChannel = socketChannel;
-            this.socketAddress = socketAddress;
+            this.receiverId = receiverId;
+            this.lane = lane;
+            queuedAt = System.nanoTime();
         }
 
         @Override
         public void run() {
+            long startedAt = System.nanoTime();
+            FlightEvents.MessageSend event = FlightEvents.startSend();
+            long connectTime = 0;
+            SocketChannel socketChannel = null;
             try {
+                socketChannel = SocketChannel.open();
                 socketChannel.configureBlocking(true);
-                socketChannel.connect(socketAddress);
-                socketChannel.write(data);
-                socketChannel.close();
+                long start = System.nanoTime();
+                socketChannel.connect(boundPeer.addressTable.get(receiverId));
+                //the connect handshake takes one round trip
+                connectTime = System.nanoTime() - start;
+                boundPeer.rtts.sample(receiverId, connectTime);
+                while (data.hasRemaining()) {
+                    socketChannel.write(data);
+                }
             } catch (ConnectException ex) {
                 //the peer is most likely dead
-                InetSocketAddress address = (InetSocketAddress) socketAddress;
-                boundPeer.peerTracker.registerDeathDetection(MessageFormatter.determineUdpPeer(address));
+                if (event != null) event.refused = true;
+                boundPeer.peerTracker.registerDeathDetection(receiverId);
+                boundPeer.fingers.forget(receiverId);
             } catch (IOException ex) {
                 ex.printStackTrace();
+            } finally {
+                try {
+                    if (socketChannel != null) socketChannel.close();
+                } catch (IOException ignored) {
+                }
+            }
+            if (event == null) return;
+            event.end();
+            if (event.shouldCommit()) {
+                event.peerId = boundPeer.ID;
+                event.receiverId = receiverId;
+                event.hop = MessageFormatter.peekHop(data.array());
+                event.queueTime = startedAt - queuedAt;
+                event.connectTime = connectTime;
+                event.messageType = MessageFormatter.messageType(data.array());
+                event.size = data.limit();
+                event.lane = lane;
+                event.commit();
             }
 
         }
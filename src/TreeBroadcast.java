@@ -0,0 +1,214 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Sends a message to every peer in the ring along a tree, and gathers the replies back up the same tree
+ * A peer that is given the part of the ring from its own ID up to limit sorts the routing entries that fall in that
+ * part and hands each one the stretch up to the next entry. Our first successor is always one of the entries so
+ * nothing is skipped, and with fingers at doubling distances every peer is reached in about log N rounds.
+ * Each peer replies to the peer it got the message from once all of its own children have replied, or once its
+ * time budget has run out, so the peer that started the broadcast gets a single combined result.
+ * A search is a broadcast that asks every peer for the keys it holds that match a pattern.
+ *
+ * @author Adiswhar Rishi
+ */
+public class TreeBroadcast {
+    //time the peer that started a broadcast waits for the result (milliseconds)
+    private final int TIMEOUT = 8000;
+    //time taken off the budget at every level of the tree so a child always replies before its parent gives up
+    private final int LEVEL_MARGIN = 500;
+    private cdht_ex peer;
+    //broadcasts waiting on replies, by origin and broadcast ID
+    private HashMap<Long, Pending> pending;
+
+    public TreeBroadcast(cdht_ex peer) {
+        this.peer = peer;
+        pending = new HashMap<Long, Pending>();
+    }
+
+    /**
+     * Prints the notice at every peer in the ring
+     */
+    public void broadcast(String notice) {
+        start(MessageFormatter.BROADCAST_NOTICE, notice);
+    }
+
+    /**
+     * Asks every peer in the ring for the keys it holds that match the pattern
+     *
+     * @param pattern a regular expression, matched against key IDs written in decimal
+     */
+    public void search(String pattern) {
+        start(MessageFormatter.BROADCAST_SEARCH, pattern);
+    }
+
+    private void start(char kind, String argument) {
+        int broadcastId = peer.nextRequestId();
+        //the part of the ring given to the peer that starts a broadcast is the whole ring
+        handleBroadcast(MessageFormatter.encodeBroadcast(peer.ID, peer.getAddress(), peer.ID, broadcastId, peer.ID,
+                TIMEOUT, kind, argument));
+    }
+
+    /**
+     * This method should be called every time a broadcast is received
+     */
+    public synchronized void handleBroadcast(byte[] message) {
+        MessageFormatter.BroadcastData data = MessageFormatter.decodeBroadcast(message);
+        final Pending p = new Pending(data);
+        if (data.getKind() == MessageFormatter.BROADCAST_NOTICE) {
+            if (data.getOrigin() != peer.ID) {
+                System.out.println("Broadcast from peer " + data.getOrigin() + ": " + data.getArgument());
+            }
+        } else {
+            search(p, data.getArgument());
+        }
+
+        ArrayList<Integer> children = new ArrayList<Integer>();
+        for (int entry : peer.fingers.getRoutingEntries()) {
+            if (inPart(entry, data.getLimit())) children.add(entry);
+        }
+        Collections.sort(children, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return FingerTable.distance(peer.ID, a) - FingerTable.distance(peer.ID, b);
+            }
+        });
+        int childBudget = data.getBudget() - LEVEL_MARGIN;
+        if (childBudget < LEVEL_MARGIN) {
+            //too deep to wait for anyone else, what is left of our part goes unanswered
+            p.missing += children.size();
+            children.clear();
+        }
+        for (int i = 0; i < children.size(); i++) {
+            int limit = (i + 1 < children.size()) ? children.get(i + 1) : data.getLimit();
+            p.waiting.add(children.get(i));
+            peer.getTcpServer().send(MessageFormatter.encodeBroadcast(peer.ID, peer.getAddress(), data.getOrigin(),
+                    data.getBroadcastId(), limit, childBudget, data.getKind(), data.getArgument()), children.get(i));
+        }
+        if (p.waiting.isEmpty()) {
+            finish(p);
+            return;
+        }
+        pending.put(key(data.getOrigin(), data.getBroadcastId()), p);
+        p.timeout = peer.getTimer().schedule(new Runnable() {
+            @Override
+            public void run() {
+                expire(p);
+            }
+        }, childBudget, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * This method should be called every time a child replies to a broadcast
+     */
+    public synchronized void handleReply(byte[] reply) {
+        ArrayList<Integer> decoded = MessageFormatter.decodeBroadcastReply(reply);
+        Pending p = pending.get(key(decoded.get(1), decoded.get(2)));
+        if (p == null || !p.waiting.remove(decoded.get(0))) return; //too late
+        p.peers += decoded.get(3);
+        p.missing += decoded.get(4);
+        p.depth = Math.max(p.depth, decoded.get(5) + 1);
+        long[] matches = MessageFormatter.decodeBroadcastMatches(reply);
+        for (int i = 0; i < matches.length && i < p.matches.length; i++) {
+            p.matches[i] |= matches[i];
+        }
+        if (p.waiting.isEmpty()) {
+            pending.remove(key(p.origin, p.broadcastId));
+            p.timeout.cancel();
+            finish(p);
+        }
+    }
+
+    private synchronized void expire(Pending p) {
+        if (pending.remove(key(p.origin, p.broadcastId)) != p) return;
+        p.missing += p.waiting.size();
+        finish(p);
+    }
+
+    /**
+     * Passes our combined result to the peer we got the broadcast from, or prints it if we started the broadcast
+     */
+    private void finish(Pending p) {
+        if (p.origin != peer.ID) {
+            peer.getTcpServer().send(MessageFormatter.encodeBroadcastReply(peer.ID, peer.getAddress(), p.origin,
+                    p.broadcastId, p.peers, p.missing, p.depth, p.matches), p.parent);
+            return;
+        }
+        String result = " reached " + p.peers + " peers in " + p.depth + " rounds";
+        if (p.missing > 0) result += ", " + p.missing + " parts of the ring did not answer";
+        if (p.kind == MessageFormatter.BROADCAST_NOTICE) {
+            System.out.println("Broadcast" + result + ".");
+        } else {
+            ArrayList<Integer> keys = new ArrayList<Integer>();
+            for (int k = 0; k < 256; k++) {
+                if ((p.matches[k >>> 6] & (1L << k)) != 0) keys.add(k);
+            }
+            System.out.println("Search for keys matching '" + p.argument + "'" + result + ", found " + keys + ".");
+        }
+    }
+
+    /**
+     * Marks the keys this peer holds that match the pattern
+     */
+    private void search(Pending p, String pattern) {
+        Pattern compiled;
+        try {
+            compiled = Pattern.compile(pattern);
+        } catch (PatternSyntaxException ex) {
+            return;
+        }
+        for (int k = 0; k < 256; k++) {
+            if (FileTracker.ownsKey(peer, k) && compiled.matcher("" + k).matches()) {
+                p.matches[k >>> 6] |= 1L << k;
+            }
+        }
+    }
+
+    /**
+     * Checks if a peer lies strictly between this peer and limit, going clockwise
+     * When limit is this peer the part is the whole ring
+     */
+    private boolean inPart(int peerId, int limit) {
+        int end = FingerTable.distance(peer.ID, limit);
+        if (end == 0) end = 256;
+        int d = FingerTable.distance(peer.ID, peerId);
+        return d > 0 && d < end;
+    }
+
+    private static long key(int origin, int broadcastId) {
+        return ((long) origin << 32) | (broadcastId & 0xFFFFFFFFL);
+    }
+
+    /**
+     * A broadcast this peer has passed on and is collecting replies for
+     */
+    private class Pending {
+        int parent;
+        int origin;
+        int broadcastId;
+        char kind;
+        String argument;
+        HashSet<Integer> waiting;
+        //this peer counts itself
+        int peers = 1;
+        int missing;
+        int depth;
+        long[] matches = new long[4];
+        HashedWheelTimer.Timeout timeout;
+
+        public Pending(MessageFormatter.BroadcastData data) {
+            parent = data.getSender();
+            origin = data.getOrigin();
+            broadcastId = data.getBroadcastId();
+            kind = data.getKind();
+            argument = data.getArgument();
+            waiting = new HashSet<Integer>();
+        }
+    }
+}
@@ -0,0 +1,129 @@
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Carries lookup and ring repair messages as datagrams on the ping server's port instead of over a new TCP
+ * connection each time, which saves the connect round trip on every hop
+ * Every datagram has a message ID and is acknowledged by the receiver. One that is not acknowledged in time is
+ * sent again, waiting twice as long each time, and a finger that never answers is forgotten.
+ * The receiver drops any message ID it has already handled.
+ * Sending this way is turned on with -Dcdht.transport=udp, datagrams are always received.
+ *
+ * @author Adiswhar Rishi
+ */
+public class UdpTransport {
+    //used until a round trip time has been measured to the peer (milliseconds)
+    private final long INITIAL_TIMEOUT = 200;
+    private final long MIN_TIMEOUT = 20;
+    private final int MAX_ATTEMPTS = 5;
+
+    private cdht_ex peer;
+    private boolean enabled;
+    private AtomicInteger nextMessageId;
+    //datagrams waiting to be acknowledged, by message ID
+    private ConcurrentHashMap<Integer, Outstanding> outstanding;
+    //message IDs that have already been handled, by sending peer
+    private SeenRequests seenMessages;
+
+    /**
+     * @throws IllegalArgumentException if cdht.transport is set to something other than tcp or udp
+     */
+    public UdpTransport(cdht_ex peer) {
+        this.peer = peer;
+        String transport = System.getProperty("cdht.transport", "tcp");
+        if (!transport.equals("tcp") && !transport.equals("udp")) {
+            throw new IllegalArgumentException("cdht.transport must be tcp or udp, not '" + transport + "'");
+        }
+        enabled = transport.equals("udp");
+        //a restarted peer must not reuse the IDs it sent before, the receiver would drop them as repeats
+        nextMessageId = new AtomicInteger(ThreadLocalRandom.current().nextInt(1 << 30));
+        outstanding = new ConcurrentHashMap<Integer, Outstanding>();
+        seenMessages = new SeenRequests(30000, 4096);
+    }
+
+    /**
+     * Returns true if the message should be sent with this transport instead of TCP
+     */
+    public boolean carries(byte[] message) {
+        return enabled && MessageFormatter.isLookupMessage(message);
+    }
+
+    /**
+     * Sends a TCP message to a peer as a datagram, it is sent again until it is acknowledged
+     */
+    public void send(byte[] message, int receiverId) {
+        Outstanding o = new Outstanding(nextMessageId.incrementAndGet(), receiverId, message);
+        outstanding.put(o.messageId, o);
+        transmit(o);
+    }
+
+    /**
+     * This method should be called every time a datagram that is not a ping is received
+     */
+    public void handleDatagram(byte[] datagram, InetSocketAddress senderAddress) {
+        if (MessageFormatter.isUdpAck(datagram)) {
+            ArrayList<Integer> decoded = MessageFormatter.decodeUdpAck(datagram);
+            Outstanding o = outstanding.get(decoded.get(1));
+            if (o == null || o.receiverId != decoded.get(0) || !outstanding.remove(o.messageId, o)) return;
+            o.timeout.cancel();
+            //only a datagram that was sent once gives an unambiguous round trip time
+            if (o.attempts == 1) peer.rtts.sample(o.receiverId, System.nanoTime() - o.sentAt);
+        } else if (MessageFormatter.isUdpFrame(datagram)) {
+            ArrayList<Integer> decoded = MessageFormatter.decodeUdpFrame(datagram);
+            int sender = decoded.get(0);
+            peer.addressTable.put(sender, senderAddress);
+            //the ack is sent even for a repeat, the first ack may have been lost
+            peer.getUdpServer().sendDatagram(MessageFormatter.encodeUdpAck(peer.ID, decoded.get(1)), sender);
+            if (!seenMessages.firstSeen(sender, decoded.get(1))) return;
+            peer.getTcpServer().deliver(MessageFormatter.decodeUdpFrameMessage(datagram));
+        }
+    }
+
+    private void transmit(final Outstanding o) {
+        long wait = peer.rtts.getRetransmitTimeout(o.receiverId, INITIAL_TIMEOUT, MIN_TIMEOUT) << o.attempts;
+        o.attempts++;
+        o.sentAt = System.nanoTime();
+        o.timeout = peer.getTimer().schedule(new Runnable() {
+            @Override
+            public void run() {
+                retransmit(o);
+            }
+        }, wait, TimeUnit.MILLISECONDS);
+        peer.getUdpServer().sendDatagram(MessageFormatter.encodeUdpFrame(peer.ID, o.messageId, o.message),
+                o.receiverId);
+    }
+
+    private void retransmit(Outstanding o) {
+        if (outstanding.get(o.messageId) != o) return;
+        if (o.attempts < MAX_ATTEMPTS) {
+            transmit(o);
+            return;
+        }
+        outstanding.remove(o.messageId);
+        System.out.println("Peer " + o.receiverId + " did not acknowledge a message after " + o.attempts + " tries.");
+        //unlike a refused connection this can happen on a bad link, so successors are left for the pings to judge
+        peer.fingers.forget(o.receiverId);
+    }
+
+    /**
+     * A datagram that has not been acknowledged yet
+     */
+    private static class Outstanding {
+        int messageId;
+        int receiverId;
+        byte[] message;
+        int attempts;
+        long sentAt;
+        HashedWheelTimer.Timeout timeout;
+
+        public Outstanding(int messageId, int receiverId, byte[] message) {
+            this.messageId = messageId;
+            this.receiverId = receiverId;
+            this.message = message;
+        }
+    }
+}
@@ -0,0 +1,136 @@
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This is a static class that creates the executors used by the servers
+ * Every executor has a bounded queue and an explicit policy for what happens when that queue is full,
+ * so a flood of requests turns into dropped work instead of an ever growing heap
+ *
+ * @author Adiswhar Rishi
+ */
+public class WorkQueues {
+
+    /**
+     * Creates an executor with a fixed number of threads and a bounded queue
+     *
+     * @param name     used to name the threads
+     * @param threads  number of worker threads
+     * @param capacity maximum number of queued tasks
+     * @param priority thread priority, lanes that detect failures should use Thread.MAX_PRIORITY
+     * @param policy   what to do with a task when the queue is full
+     */
+    public static ThreadPoolExecutor bounded(String name, int threads, int capacity, int priority,
+                                             RejectedExecutionHandler policy) {
+        return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(capacity), new LaneThreadFactory(name, priority), policy);
+    }
+
+    /**
+     * Drops the newest task and keeps a count of how many have been dropped
+     * A message is printed for the first drop and every 100th after that
+     */
+    public static class Shed implements RejectedExecutionHandler {
+        private String name;
+        private AtomicLong shed;
+
+        public Shed(String name) {
+            this.name = name;
+            shed = new AtomicLong();
+        }
+
+        @Override
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            if (executor.isShutdown()) return;
+            dropped(r);
+            long count = shed.incrementAndGet();
+            if (count % 100 == 1) {
+                System.err.println("The " + name + " queue is full, " + count + " tasks have been shed so far.");
+            }
+        }
+
+        /**
+         * Called with every task that is dropped so that it can release anything it holds
+         */
+        protected void dropped(Runnable r) {
+        }
+
+        public long getShedCount() {
+            return shed.get();
+        }
+    }
+
+    /**
+     * Drops the oldest queued task to make room for the new one
+     * Suits work where only the latest request matters, such as pings
+     */
+    public static class ShedOldest extends Shed {
+        public ShedOldest(String name) {
+            super(name);
+        }
+
+        @Override
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            if (executor.isShutdown()) return;
+            Runnable oldest = executor.getQueue().poll();
+            if (oldest != null) super.rejectedExecution(oldest, executor);
+            executor.execute(r);
+        }
+    }
+
+    /**
+     * Hands a task that does not fit to a backup executor with a queue of its own, it is never run on the caller
+     * Suits work that should not be dropped but may be submitted from a thread that must not block, such as the
+     * timer thread. If the backup queue fills up too the oldest task there is dropped.
+     */
+    public static class Handoff implements RejectedExecutionHandler {
+        private ThreadPoolExecutor backup;
+
+        /**
+         * @param name     used to name the backup thread
+         * @param capacity maximum number of tasks waiting in the backup queue
+         */
+        public Handoff(String name, int capacity) {
+            backup = bounded(name + " Overflow", 1, capacity, Thread.MAX_PRIORITY, new ShedOldest(name));
+        }
+
+        @Override
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            if (executor.isShutdown()) {
+                backup.shutdown();
+                return;
+            }
+            backup.execute(r);
+        }
+
+        /**
+         * Stops the backup thread once its queue is empty
+         */
+        public void shutdown() {
+            backup.shutdown();
+        }
+    }
+
+    private static class LaneThreadFactory implements ThreadFactory {
+        private String name;
+        private int priority;
+        private AtomicInteger count;
+
+        public LaneThreadFactory(String name, int priority) {
+            this.name = name;
+            this.priority = priority;
+            count = new AtomicInteger();
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, name + " " + count.incrementAndGet());
+            t.setPriority(priority);
+            return t;
+        }
+    }
+}
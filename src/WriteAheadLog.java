@@ -0,0 +1,405 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of the changes to a peer's state, so that a peer that crashes can get its state back
+ * Changes are handed to the log with a type and written by a single writer thread. Everything that is waiting
+ * when the writer gets to it is written as one batch with a single fsync (group commit), and only then is each
+ * change's callback run, so an acknowledgement sent from the callback is never for something that could be lost.
+ * <p>
+ * Every so often the writer asks each client for records that describe its whole state, writes them to a
+ * checkpoint file and starts the log again empty. On startup the checkpoint is replayed, then whatever has been
+ * logged since, so recovery only reads the tail of the log. A change can be made in memory before its record is
+ * written, so the checkpoint may already include records that are still waiting. Replaying a record twice must
+ * therefore leave the same state as replaying it once.
+ * <p>
+ * Each record is written as its length, a CRC32 and a type byte followed by the record. A record cut short by a
+ * crash fails its check and the log is cut back to the record before it. Each log starts with a generation number
+ * and the checkpoint holds the generation it covers, so a crash between writing a checkpoint and emptying the log
+ * does not replay the old log on top of the newer checkpoint.
+ * The files are cdht_ID.wal and cdht_ID.checkpoint in the directory given by the system property cdht.stateDir.
+ * Without cdht.stateDir nothing is kept, so a peer started in a directory used by an earlier ring starts afresh.
+ *
+ * @author Adiswhar Rishi
+ */
+public class WriteAheadLog implements Runnable {
+    private static final byte GENERATION = 'G';
+    //length, CRC32 and type
+    private static final int HEADER_SIZE = 9;
+    //a longer record than this can only be a corrupted length
+    private static final int MAX_RECORD_SIZE = 1 << 16;
+    private final int MAX_BATCH = 256;
+    //the log is checkpointed once it is this long (bytes)
+    private final long CHECKPOINT_SIZE = 1 << 20;
+    //or once this much time has gone by with something in the log (milliseconds)
+    private final long CHECKPOINT_PERIOD = 60000;
+
+    //false unless cdht.stateDir is set
+    private boolean enabled;
+    private File logFile;
+    private File checkpointFile;
+    private FileChannel log;
+    private long generation;
+    private long logSize;
+    private long lastCheckpoint;
+    private HashMap<Byte, Client> clients;
+    private LinkedBlockingQueue<Entry> queue;
+    private Thread writer;
+    private volatile boolean closing;
+    //counts for printing, only changed by the writer
+    private long records;
+    private long commits;
+    private long checkpoints;
+
+    /**
+     * Something whose state is kept in the log
+     */
+    public interface Client {
+        /**
+         * Called on startup with every record of this client's type, in the order they were logged
+         */
+        void replay(byte[] record);
+
+        /**
+         * Adds records that describe the whole current state of this client
+         */
+        void checkpoint(List<byte[]> records);
+    }
+
+    public WriteAheadLog(int peerId) {
+        String dir = System.getProperty("cdht.stateDir");
+        enabled = dir != null;
+        clients = new HashMap<Byte, Client>();
+        queue = new LinkedBlockingQueue<Entry>();
+        if (!enabled) return;
+        logFile = new File(dir, "cdht_" + peerId + ".wal");
+        checkpointFile = new File(dir, "cdht_" + peerId + ".checkpoint");
+    }
+
+    /**
+     * Returns false if state is not being kept, because cdht.stateDir is not set
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Has the records of a type replayed to and checkpointed by the client
+     * Every client must be registered before recover is called
+     */
+    public synchronized void register(char type, Client client) {
+        clients.put((byte) type, client);
+    }
+
+    /**
+     * Replays the checkpoint and the log to the clients, then starts the writer
+     */
+    public synchronized void recover() {
+        if (!enabled) return;
+        long start = System.nanoTime();
+        int fromCheckpoint = 0;
+        int fromLog = 0;
+        long covered = -1;
+        try {
+            if (checkpointFile.exists()) {
+                ArrayList<byte[]> found = new ArrayList<byte[]>();
+                read(checkpointFile, found);
+                if (!found.isEmpty() && found.get(0)[0] == GENERATION) {
+                    covered = ByteBuffer.wrap(found.get(0), 1, 8).getLong();
+                    fromCheckpoint = replay(found.subList(1, found.size()));
+                } else {
+                    System.err.println("Ignoring checkpoint " + checkpointFile + ", it has no generation.");
+                }
+            }
+            long logGeneration = -1;
+            if (logFile.exists()) {
+                ArrayList<byte[]> found = new ArrayList<byte[]>();
+                long valid = read(logFile, found);
+                if (!found.isEmpty() && found.get(0)[0] == GENERATION) {
+                    logGeneration = ByteBuffer.wrap(found.get(0), 1, 8).getLong();
+                }
+                //a log the checkpoint already covers is left over from a crash during a checkpoint
+                if (logGeneration > covered) {
+                    fromLog = replay(found.subList(1, found.size()));
+                    log = FileChannel.open(logFile.toPath(), StandardOpenOption.WRITE);
+                    log.truncate(valid);
+                    log.position(valid);
+                    logSize = valid;
+                    generation = logGeneration;
+                }
+            }
+            if (log == null) {
+                generation = covered + 1;
+                //anything left in a covered log must go, or it would be replayed after the new header next time
+                log = FileChannel.open(logFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING);
+                startLog();
+            }
+        } catch (IOException e) {
+            System.err.println("Could not open write-ahead log " + logFile + ": " + e.getMessage());
+            return;
+        }
+        if (fromCheckpoint + fromLog > 0) {
+            System.out.println("Recovered " + fromCheckpoint + " records from the checkpoint and " + fromLog
+                    + " from the log in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms.");
+        }
+        lastCheckpoint = System.nanoTime();
+        writer = new Thread(this, "Write-Ahead Log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Adds a record to the log, it is written with the next batch
+     * This never blocks, so it can be called while holding a lock the callback also takes
+     * If state is not being kept the callback is run straight away on the calling thread.
+     *
+     * @param onDurable run by the writer once the record is on disk, may be null
+     */
+    public void append(char type, byte[] record, Runnable onDurable) {
+        if (!enabled) {
+            if (onDurable != null) onDurable.run();
+            return;
+        }
+        if (closing) return;
+        queue.add(new Entry((byte) type, record, onDurable));
+    }
+
+    /**
+     * Writes everything still waiting, checkpoints and closes the log
+     */
+    public void close() {
+        if (writer == null) return;
+        closing = true;
+        queue.add(new Entry(GENERATION, null, null));
+        try {
+            writer.join(5000);
+        } catch (InterruptedException ignored) {
+        }
+    }
+
+    @Override
+    public void run() {
+        ArrayList<Entry> batch = new ArrayList<Entry>();
+        while (true) {
+            Entry first;
+            try {
+                first = queue.poll(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            boolean stop = false;
+            if (first != null) {
+                batch.add(first);
+                queue.drainTo(batch, MAX_BATCH - 1);
+                //the entry close adds has no record
+                for (int i = batch.size() - 1; i >= 0; i--) {
+                    if (batch.get(i).record == null) {
+                        batch.remove(i);
+                        stop = true;
+                    }
+                }
+                if (!batch.isEmpty()) commit(batch);
+                batch.clear();
+            }
+            long sinceCheckpoint = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastCheckpoint);
+            if (stop || logSize >= CHECKPOINT_SIZE
+                    || sinceCheckpoint >= CHECKPOINT_PERIOD && logSize > HEADER_SIZE + 8) {
+                checkpoint();
+            }
+            if (stop) {
+                try {
+                    log.close();
+                } catch (IOException ignored) {
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Counts of what the log has done so far, for printing
+     */
+    @Override
+    public String toString() {
+        if (!enabled) return "Write-ahead log: off, set cdht.stateDir to keep state.";
+        return "Write-ahead log: " + records + " records in " + commits + " commits, " + checkpoints
+                + " checkpoints.";
+    }
+
+    /**
+     * Writes a batch with a single fsync and then runs its callbacks
+     */
+    private void commit(List<Entry> batch) {
+        int size = 0;
+        for (Entry e : batch) {
+            size += HEADER_SIZE + e.record.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        for (Entry e : batch) {
+            put(buffer, e.type, e.record);
+        }
+        buffer.flip();
+        try {
+            while (buffer.hasRemaining()) log.write(buffer);
+            log.force(false);
+        } catch (IOException e) {
+            //nothing in the batch is acknowledged, whoever is waiting on it will time out
+            System.err.println("Could not write to the write-ahead log " + logFile + ": " + e.getMessage());
+            return;
+        }
+        logSize += size;
+        records += batch.size();
+        commits++;
+        for (Entry e : batch) {
+            if (e.onDurable == null) continue;
+            try {
+                e.onDurable.run();
+            } catch (RuntimeException ex) {
+                ex.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Writes the state of every client to the checkpoint file and empties the log
+     */
+    private void checkpoint() {
+        ArrayList<byte[]> state = new ArrayList<byte[]>();
+        ArrayList<Byte> types = new ArrayList<Byte>();
+        synchronized (this) {
+            for (Byte type : clients.keySet()) {
+                int before = state.size();
+                clients.get(type).checkpoint(state);
+                for (int i = before; i < state.size(); i++) {
+                    types.add(type);
+                }
+            }
+        }
+        int size = HEADER_SIZE + 8;
+        for (byte[] record : state) {
+            size += HEADER_SIZE + record.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        put(buffer, GENERATION, ByteBuffer.allocate(8).putLong(generation).array());
+        for (int i = 0; i < state.size(); i++) {
+            put(buffer, types.get(i), state.get(i));
+        }
+        buffer.flip();
+        File temp = new File(checkpointFile.getPath() + ".tmp");
+        try {
+            FileChannel out = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            try {
+                while (buffer.hasRemaining()) out.write(buffer);
+                out.force(true);
+            } finally {
+                out.close();
+            }
+            Files.move(temp.toPath(), checkpointFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            //the checkpoint covers this generation, the log starts again with the next one
+            generation++;
+            log.truncate(0);
+            log.position(0);
+            startLog();
+        } catch (IOException e) {
+            System.err.println("Could not checkpoint the write-ahead log " + logFile + ": " + e.getMessage());
+            return;
+        }
+        checkpoints++;
+        lastCheckpoint = System.nanoTime();
+    }
+
+    private void startLog() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + 8);
+        put(buffer, GENERATION, ByteBuffer.allocate(8).putLong(generation).array());
+        buffer.flip();
+        while (buffer.hasRemaining()) log.write(buffer);
+        log.force(true);
+        logSize = HEADER_SIZE + 8;
+    }
+
+    /**
+     * Hands records to their clients, each record still starts with its type
+     *
+     * @return the number of records replayed
+     */
+    private int replay(List<byte[]> found) {
+        for (byte[] record : found) {
+            Client client = clients.get(record[0]);
+            if (client != null) client.replay(Arrays.copyOfRange(record, 1, record.length));
+        }
+        return found.size();
+    }
+
+    /**
+     * Reads every whole record of a file, each with its type in front
+     *
+     * @return the length of the file up to the end of the last whole record
+     */
+    private static long read(File file, List<byte[]> found) throws IOException {
+        ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        CRC32 crc = new CRC32();
+        while (data.remaining() >= HEADER_SIZE) {
+            int start = data.position();
+            int length = data.getInt();
+            long expected = data.getInt() & 0xFFFFFFFFL;
+            if (length < 1 || length > MAX_RECORD_SIZE || length > data.remaining()) {
+                data.position(start);
+                break;
+            }
+            byte[] record = new byte[length];
+            data.get(record);
+            crc.reset();
+            crc.update(record);
+            if (crc.getValue() != expected) {
+                data.position(start);
+                break;
+            }
+            found.add(record);
+        }
+        if (data.hasRemaining()) {
+            System.err.println("Cut " + data.remaining() + " bytes of incomplete records from the end of " + file + ".");
+        }
+        return data.position();
+    }
+
+    private static void put(ByteBuffer buffer, byte type, byte[] record) {
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(record);
+        buffer.putInt(record.length + 1);
+        buffer.putInt((int) crc.getValue());
+        buffer.put(type);
+        buffer.put(record);
+    }
+
+    /**
+     * A record waiting to be written
+     */
+    private static class Entry {
+        byte type;
+        //null for the entry that tells the writer to stop
+        byte[] record;
+        Runnable onDurable;
+
+        public Entry(byte type, byte[] record, Runnable onDurable) {
+            this.type = type;
+            this.record = record;
+            this.onDurable = onDurable;
+        }
+    }
+}
@@ -3,17 +3,22 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
-import java.util.Timer;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.regex.Matcher;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 /**
  * Represents a peer in the Circular DHT
  * Usage: java cdht <ID> <SUCCESSOR1> <SUCCESSOR2>
  * The peer will find and keep track of its two successors
  * A peer initialized with id = n will have a ping server at UDP port 50000 + n
+ * Any peer argument can be given as ID@host:port to place that peer at a different address, for example
+ * java cdht_ex 3@127.0.0.3:50003 4@127.0.0.4:50004 5@10.0.0.2:7000
  *
  * @author Adiswhar Rishi
  */
@@ -23,8 +28,24 @@ public class cdht_ex {
     public static final int PORT_BASE = 50000;
     //time between each successive ping (seconds)
     private final int PING_RATE;
+    //time a file request has to be answered (seconds)
+    private final int LOOKUP_TIMEOUT = 5;
     public PeerTracker peerTracker;
-    private Timer successorPingTimer;
+    public PeerAddressTable addressTable;
+    public RangeScan rangeScan;
+    public FingerTable fingers;
+    public RttEstimator rtts;
+    public TreeBroadcast broadcasts;
+    public ErasureStore erasureStore;
+    public WriteAheadLog writeAheadLog;
+    private InetSocketAddress address;
+    private HashedWheelTimer timer;
+    //file requests started by this peer that have not been answered yet, by request ID
+    private ConcurrentHashMap<Integer, HashedWheelTimer.Timeout> pendingLookups;
+    private AtomicInteger nextRequestId;
+    //null unless a scenario is given with -Dcdht.scenario
+    private NetworkEmulator emulator;
+    private UdpTransport udpTransport;
     private PingServer udpServer;
     private TcpServer tcpServer;
     private ExecutorService threadManager;
@@ -37,6 +58,18 @@ public class cdht_ex {
         return tcpServer;
     }
 
+    public HashedWheelTimer getTimer() {
+        return timer;
+    }
+
+    public NetworkEmulator getEmulator() {
+        return emulator;
+    }
+
+    public UdpTransport getUdpTransport() {
+        return udpTransport;
+    }
+
     /**
      * Initialize Peer with its ID and two successors in the CDHT
      *
@@ -45,9 +78,40 @@ public class cdht_ex {
      * @param s2_ID   range 0-255
      */
     public cdht_ex(int self_ID, int s1_ID, int s2_ID) {
+        this(self_ID, PeerAddressTable.defaultAddress(self_ID), s1_ID, s2_ID);
+    }
+
+    /**
+     * Initialize Peer with its ID, the address it should bind to and two successors in the CDHT
+     * The addresses of the successors should be put into the addressTable before initialize is called
+     *
+     * @param self_ID range 0-255
+     * @param address the address both servers will be bound to
+     * @param s1_ID   range 0-255
+     * @param s2_ID   range 0-255
+     * @throws IllegalArgumentException if the network emulator scenario can not be loaded, cdht.transport is
+     *                                  not tcp or udp, cdht.fragments is not a usable code or cdht.hash is
+     *                                  not a known hash
+     */
+    public cdht_ex(int self_ID, InetSocketAddress address, int s1_ID, int s2_ID) {
+        FileTracker.checkHashSetting();
         ID = self_ID;
+        this.address = address;
         PING_RATE = 1; //seconds
-        successorPingTimer = new Timer("Successor Ping Timer");
+        addressTable = new PeerAddressTable();
+        addressTable.put(ID, address);
+        rtts = new RttEstimator();
+        writeAheadLog = new WriteAheadLog(ID);
+        timer = HashedWheelTimer.shared();
+        emulator = NetworkEmulator.fromSystemProperty(ID);
+        udpTransport = new UdpTransport(this);
+        pendingLookups = new ConcurrentHashMap<Integer, HashedWheelTimer.Timeout>();
+        //a restarted peer must not reuse the IDs it sent before, peers would drop its requests as repeats
+        nextRequestId = new AtomicInteger(ThreadLocalRandom.current().nextInt(1 << 30));
+        rangeScan = new RangeScan(this);
+        fingers = new FingerTable(this);
+        broadcasts = new TreeBroadcast(this);
+        erasureStore = new ErasureStore(this);
         udpServer = new PingServer(this);
         tcpServer = new TcpServer(this);
         peerTracker = new PeerTracker(this, s1_ID, s2_ID);
@@ -56,7 +120,21 @@ public class cdht_ex {
 
     public static void main(String[] args) {
         if (!verifyArgs(args)) System.exit(1);
-        cdht_ex self = new cdht_ex(Integer.parseInt(args[0]), Integer.parseInt(args[1]), Integer.parseInt(args[2]));
+        int[] ids = new int[args.length];
+        for (int i = 0; i < args.length; i++) {
+            ids[i] = MessageFormatter.decodePeerId(args[i]);
+        }
+        InetSocketAddress selfAddress = MessageFormatter.decodePeerAddress(args[0]);
+        if (selfAddress == null) selfAddress = PeerAddressTable.defaultAddress(ids[0]);
+        cdht_ex self = null;
+        try {
+            self = new cdht_ex(ids[0], selfAddress, ids[1], ids[2]);
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            System.exit(1);
+        }
+        self.addressTable.put(ids[1], MessageFormatter.decodePeerAddress(args[1]));
+        self.addressTable.put(ids[2], MessageFormatter.decodePeerAddress(args[2]));
         self.initialize();
         String line;
         BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
@@ -64,15 +142,73 @@ public class cdht_ex {
             while ((line = reader.readLine()) != null) {
                 if (line.equals("quit")) {
                     break;
-                } else if (line.matches("request\\s+\\d+")) {
-                    Matcher m = Pattern.compile("\\d+").matcher(line);
-                    m.find();
-                    String filename = m.group();
-                    byte[] request = MessageFormatter.encodeFileRequest(self.ID, filename);
-                    InetSocketAddress address = new InetSocketAddress("localhost",
-                            self.peerTracker.getSuccessorId(1) + PORT_BASE);
-                    self.tcpServer.send(request, address);
-                    System.out.println("File request message for " + filename + " has been sent to my successor.");
+                } else if (line.matches("request\\s+\\S+")) {
+                    String filename = line.trim().split("\\s+")[1];
+                    if (MessageFormatter.encodeName(filename).length() > MessageFormatter.MAX_NAME_SIZE) {
+                        System.out.println("The file name " + filename + " is too long.");
+                        continue;
+                    }
+                    int successor = self.peerTracker.getSuccessorId(1);
+                    if (successor == -1) {
+                        System.out.println("I have no successor to send the file request for " + filename + " to.");
+                        continue;
+                    }
+                    //the name is hashed here only, the key travels with the request
+                    int fileId = FileTracker.getFileId(filename);
+                    int next = self.fingers.nextHop(fileId);
+                    //if we hold the file ourselves the request goes all the way round the ring
+                    if (next == -1) next = successor;
+                    int requestId = self.nextRequestId();
+                    byte[] request = MessageFormatter.encodeFileRequest(self.ID, self.address, fileId, filename,
+                            requestId, MessageFormatter.MAX_HOPS);
+                    self.trackLookup(requestId, filename);
+                    self.tcpServer.send(request, next);
+                    if (next == successor) {
+                        System.out.println("File request message for " + filename + " has been sent to my successor.");
+                    } else {
+                        System.out.println("File request message for " + filename + " has been sent to peer " + next + ".");
+                    }
+                } else if (line.matches("scan\\s+\\d+\\s+\\d+")) {
+                    String[] range = line.trim().split("\\s+");
+                    int from = Integer.parseInt(range[1]);
+                    int to = Integer.parseInt(range[2]);
+                    if (from >= to || to > 256) {
+                        System.out.println("A scan needs 0 <= from < to <= 256.");
+                    } else {
+                        self.rangeScan.start(from, to);
+                    }
+                } else if (line.matches("broadcast\\s+.+")) {
+                    String notice = line.trim().substring("broadcast".length()).trim();
+                    if (MessageFormatter.encodeName(notice).length() > MessageFormatter.MAX_NAME_SIZE) {
+                        System.out.println("A broadcast can be at most " + MessageFormatter.MAX_NAME_SIZE
+                                + " characters once escaped.");
+                    } else {
+                        self.broadcasts.broadcast(notice);
+                    }
+                } else if (line.matches("search\\s+.+")) {
+                    String pattern = line.trim().substring("search".length()).trim();
+                    try {
+                        Pattern.compile(pattern);
+                        if (MessageFormatter.encodeName(pattern).length() > MessageFormatter.MAX_NAME_SIZE) {
+                            System.out.println("A search pattern can be at most " + MessageFormatter.MAX_NAME_SIZE
+                                    + " characters once escaped.");
+                        } else {
+                            self.broadcasts.search(pattern);
+                        }
+                    } catch (PatternSyntaxException ex) {
+                        System.out.println("'" + pattern + "' is not a valid regular expression.");
+                    }
+                } else if (line.matches("put\\s+\\S+\\s+.+")) {
+                    String[] words = line.trim().split("\\s+", 3);
+                    byte[] object = words[2].getBytes();
+                    if (object.length > ErasureStore.MAX_OBJECT_SIZE) {
+                        System.out.println("An object can be at most " + ErasureStore.MAX_OBJECT_SIZE + " bytes.");
+                    } else {
+                        self.erasureStore.put(FileTracker.getFileId(words[1]), words[1], object);
+                    }
+                } else if (line.matches("get\\s+\\S+")) {
+                    String name = line.trim().split("\\s+")[1];
+                    self.erasureStore.get(FileTracker.getFileId(name), name);
                 } else {
                     System.out.println(line);
                 }
@@ -80,29 +216,63 @@ public class cdht_ex {
             self.shutdown();
             self.udpServer.close();
             self.tcpServer.close();
-            self.successorPingTimer.cancel();
+            self.peerTracker.stop();
+            self.fingers.stop();
             self.threadManager.shutdown();
+            self.writeAheadLog.close();
+            System.out.println(self.writeAheadLog);
+            if (self.emulator != null) System.out.println(self.emulator);
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
     public void initialize() {
-        successorPingTimer.scheduleAtFixedRate(peerTracker, 0, PING_RATE * 1000);
+        writeAheadLog.recover();
+        boolean restored = peerTracker.restoreSnapshot();
+        peerTracker.start(PING_RATE * 1000);
         threadManager.execute(udpServer);
         threadManager.execute(tcpServer);
+        if (restored) peerTracker.validateSnapshot();
+        fingers.start();
+    }
+
+
+    /**
+     * Returns a new ID for a request started by this peer
+     */
+    public int nextRequestId() {
+        return nextRequestId.incrementAndGet();
     }
 
+    /**
+     * Starts the timeout for a file request sent by this peer
+     */
+    private void trackLookup(final int requestId, final String filename) {
+        HashedWheelTimer.Timeout timeout = timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (pendingLookups.remove(requestId) != null) {
+                    System.out.println("File request for " + filename + " timed out.");
+                }
+            }
+        }, LOOKUP_TIMEOUT, TimeUnit.SECONDS);
+        pendingLookups.put(requestId, timeout);
+    }
 
     /**
-     * Returns the udp port number that this peer would like to be bound to
+     * This method should be called when a response to a file request sent by this peer is received
      */
-    public int getUdpPort() {
-        return PORT_BASE + ID;
+    public void completeLookup(int requestId) {
+        HashedWheelTimer.Timeout timeout = pendingLookups.remove(requestId);
+        if (timeout != null) timeout.cancel();
     }
 
-    public int getTcpPort() {
-        return PORT_BASE + ID;
+    /**
+     * Returns the address that this peer would like its UDP and TCP servers to be bound to
+     */
+    public InetSocketAddress getAddress() {
+        return address;
     }
 
     /*
@@ -112,11 +282,26 @@ public class cdht_ex {
         boolean result = true;
         if (args.length != 3) {
             result = false;
-            System.err.println("Usage: java cdht <ID> <SUCCESSOR1> <SUCCESSOR2>");
+            System.err.println("Usage: java cdht <ID>[@host:port] <SUCCESSOR1>[@host:port] <SUCCESSOR2>[@host:port]");
         }
         int count = 0;
         while (count < args.length && result) {
             String arg = args[count];
+            if (arg.contains("@")) {
+                try {
+                    if (MessageFormatter.decodePeerAddress(arg) == null) {
+                        result = false;
+                        System.err.printf("Argument \'%s\' does not have an address of the form host:port", arg);
+                        continue;
+                    }
+                } catch (IllegalArgumentException ex) {
+                    //also covers a port that is not a number or out of range
+                    result = false;
+                    System.err.printf("Argument \'%s\' does not have a valid address", arg);
+                    continue;
+                }
+                arg = arg.substring(0, arg.indexOf('@'));
+            }
             if (arg.length() > 3) { // a fail fast for efficiency
                 result = false;
                 System.err.printf("Argument \'%s\' has more than 3 characters and hence is out of range", arg);
@@ -142,16 +327,17 @@ public class cdht_ex {
     /**
      * Initiates a graceful quit.
      * This peer will sent successor information to its predecessors
+     * The routing state is saved first so that a restart can pick it up
      */
     private void shutdown() {
+        peerTracker.saveSnapshot();
         ArrayList<Integer> predecessorIds = peerTracker.getPredecessors();
         ArrayList<Integer> successors = peerTracker.getSuccessors();
         if (predecessorIds == null || successors == null) return;
 //        System.out.println("Sending quit to - " + predecessorIds);
-        byte[] data = MessageFormatter.encodeDepartingMessage(ID, successors);
+        byte[] data = MessageFormatter.encodeDepartingMessage(ID, successors, addressTable);
         for (int i = 0; i < predecessorIds.size(); i++) {
-            InetSocketAddress address = new InetSocketAddress("localhost", PORT_BASE + predecessorIds.get(i));
-            tcpServer.send(data, address);
+            tcpServer.send(data, predecessorIds.get(i));
         }
     }
 }
\ No newline at end of file